@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) 2011 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.gitective.mongo;
+
+import static org.gitective.mongo.IPropertyConstants.ID;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.ReadPreference;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.jgit.generated.storage.dht.proto.GitStore.ChunkMeta;
+import org.eclipse.jgit.storage.dht.AsyncCallback;
+import org.eclipse.jgit.storage.dht.ChunkKey;
+import org.eclipse.jgit.storage.dht.DhtException;
+import org.eclipse.jgit.storage.dht.PackChunk.Members;
+import org.eclipse.jgit.storage.dht.spi.ChunkTable;
+import org.eclipse.jgit.storage.dht.spi.Context;
+import org.eclipse.jgit.storage.dht.spi.WriteBuffer;
+
+/**
+ * Chunk table that looks up chunks using an {@link AsyncMongoClient}
+ * <p>
+ * Lookups return immediately and callbacks are called from the I/O thread of
+ * the client. All batches of a lookup are sent at once. Queries and documents
+ * are created by the given {@link MongoChunkTable} which is also used for
+ * all writes.
+ * <p>
+ * Lookups use the read preference of the table. When it allows reading from
+ * secondaries, lookups are sent to the secondary client if one is set and
+ * keys not found are looked up again on the primary.
+ */
+public class AsyncChunkTable implements ChunkTable {
+
+	private final MongoChunkTable table;
+
+	private final AsyncMongoClient client;
+
+	private AsyncMongoClient secondaryClient;
+
+	/**
+	 * @param table
+	 * @param client
+	 *            client connected to the primary
+	 */
+	public AsyncChunkTable(MongoChunkTable table, AsyncMongoClient client) {
+		this.table = table;
+		this.client = client;
+	}
+
+	/**
+	 * Set client used for lookups that may read from a secondary
+	 * 
+	 * @param secondaryClient
+	 *            may be null to send all lookups to the primary client
+	 * @return this table
+	 */
+	public AsyncChunkTable setSecondaryClient(AsyncMongoClient secondaryClient) {
+		this.secondaryClient = secondaryClient;
+		return this;
+	}
+
+	private void query(DBCollection collection, DBObject query,
+			DBObject fields, ReadPreference preference,
+			AsyncResultHandler<?> handler) {
+		AsyncMongoClient target = client;
+		if (secondaryClient != null && preference != ReadPreference.PRIMARY
+				&& table.isSecondaryRead())
+			target = secondaryClient;
+		try {
+			target.query(collection.getFullName(), query, fields,
+					table.getCursorBatchSize(), preference,
+					ChunkDecoder.FACTORY, handler);
+		} catch (DhtException e) {
+			handler.onFailure(e);
+		}
+	}
+
+	private void get(final List<ChunkKey> keys,
+			final ReadPreference preference, Collection<Members> found,
+			AsyncCallback<Collection<Members>> callback) {
+		final Set<ChunkKey> returned = new HashSet<ChunkKey>();
+		query(table.getCollection(), table.createQuery(keys), null,
+				preference, new AsyncResultHandler<Collection<Members>>(found,
+						callback) {
+
+					protected void add(DBObject document)
+							throws InvalidProtocolBufferException {
+						ChunkKey key = ChunkKey.fromString(MongoUtils.getKey(
+								document, ID));
+						returned.add(key);
+						Members members = table.createMembers(key, document);
+						if (members != null)
+							result.add(members);
+					}
+
+					protected void complete(
+							AsyncCallback<Collection<Members>> callback) {
+						List<ChunkKey> missing = null;
+						if (preference != ReadPreference.PRIMARY
+								&& table.isSecondaryRead())
+							missing = table.getMissing(keys, returned);
+						if (missing != null && !missing.isEmpty())
+							get(missing, ReadPreference.PRIMARY, result,
+									callback);
+						else
+							callback.onSuccess(result);
+					}
+				});
+	}
+
+	public void get(Context options, Set<ChunkKey> keys,
+			AsyncCallback<Collection<Members>> callback) {
+		new ParallelLookup<ChunkKey, Collection<Members>>(
+				ParallelLookup.DIRECT, keys, table.getBatchSize(), callback) {
+
+			protected Collection<Members> createResult() {
+				return new ArrayList<Members>();
+			}
+
+			protected void addResult(Collection<Members> result,
+					Collection<Members> partial) {
+				result.addAll(partial);
+			}
+
+			protected void lookup(Set<ChunkKey> batch,
+					AsyncCallback<Collection<Members>> batchCallback) {
+				get(new ArrayList<ChunkKey>(batch), table.getReadPreference(),
+						new ArrayList<Members>(batch.size()), batchCallback);
+			}
+		}.start(Integer.MAX_VALUE);
+	}
+
+	private DBCollection getFirstMetaCollection() {
+		DBCollection metaCollection = table.getMetaCollection();
+		return metaCollection != null ? metaCollection : table.getCollection();
+	}
+
+	private void getMeta(final DBCollection collection,
+			final List<ChunkKey> keys, final ReadPreference preference,
+			Map<ChunkKey, ChunkMeta> found,
+			AsyncCallback<Map<ChunkKey, ChunkMeta>> callback) {
+		query(collection, table.createQuery(keys), MongoChunkTable.META_FIELDS,
+				preference, new AsyncResultHandler<Map<ChunkKey, ChunkMeta>>(
+						found, callback) {
+
+					protected void add(DBObject document)
+							throws InvalidProtocolBufferException {
+						ChunkMeta meta = table.getChunkMeta(document);
+						if (meta != null)
+							result.put(ChunkKey.fromString(MongoUtils.getKey(
+									document, ID)), meta);
+					}
+
+					protected void complete(
+							AsyncCallback<Map<ChunkKey, ChunkMeta>> callback) {
+						List<ChunkKey> missing = table.getMissing(keys,
+								result.keySet());
+						if (missing.isEmpty())
+							callback.onSuccess(result);
+						else if (collection != table.getCollection())
+							getMeta(table.getCollection(), missing,
+									preference, result, callback);
+						else if (preference != ReadPreference.PRIMARY
+								&& table.isSecondaryRead())
+							getMeta(getFirstMetaCollection(), missing,
+									ReadPreference.PRIMARY, result, callback);
+						else
+							callback.onSuccess(result);
+					}
+				});
+	}
+
+	public void getMeta(Context options, Set<ChunkKey> keys,
+			AsyncCallback<Map<ChunkKey, ChunkMeta>> callback) {
+		new ParallelLookup<ChunkKey, Map<ChunkKey, ChunkMeta>>(
+				ParallelLookup.DIRECT, keys, table.getBatchSize(), callback) {
+
+			protected Map<ChunkKey, ChunkMeta> createResult() {
+				return new HashMap<ChunkKey, ChunkMeta>();
+			}
+
+			protected void addResult(Map<ChunkKey, ChunkMeta> result,
+					Map<ChunkKey, ChunkMeta> partial) {
+				result.putAll(partial);
+			}
+
+			protected void lookup(Set<ChunkKey> batch,
+					AsyncCallback<Map<ChunkKey, ChunkMeta>> batchCallback) {
+				getMeta(getFirstMetaCollection(), new ArrayList<ChunkKey>(
+						batch), table.getReadPreference(),
+						new HashMap<ChunkKey, ChunkMeta>(), batchCallback);
+			}
+		}.start(Integer.MAX_VALUE);
+	}
+
+	public void put(Members chunk, WriteBuffer buffer) throws DhtException {
+		table.put(chunk, buffer);
+	}
+
+	public void remove(ChunkKey key, WriteBuffer buffer) throws DhtException {
+		table.remove(key, buffer);
+	}
+}
@@ -0,0 +1,580 @@
+/*
+ * Copyright (c) 2011 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.gitective.mongo;
+
+import com.mongodb.DBCollection;
+import com.mongodb.DBDecoder;
+import com.mongodb.DBDecoderFactory;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
+import com.mongodb.DefaultDBEncoder;
+import com.mongodb.ReadPreference;
+import com.mongodb.ServerAddress;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.storage.dht.DhtException;
+
+/**
+ * Non-blocking MongoDB client supporting queries over the wire protocol
+ * <p>
+ * Queries are written to a fixed number of connections without waiting for
+ * earlier replies and all connections are served by a single I/O thread.
+ * Replies are decoded and passed to the {@link QueryHandler} of the query on
+ * the I/O thread so handlers must not block. Cursors are read to completion
+ * by sending additional get more requests as each reply arrives.
+ * <p>
+ * Only unauthenticated connections to a single server are supported. Queries
+ * with a read preference other than {@link ReadPreference#PRIMARY} are sent
+ * with the slave ok flag so they are also answered when the server is a
+ * secondary, all other queries fail unless the server is the primary.
+ * <p>
+ * Queries not answered within the configured timeout fail and the connection
+ * they were sent on is closed, failing all other queries pending on it, since
+ * the server answers the requests of a connection in order.
+ */
+public class AsyncMongoClient {
+
+	/**
+	 * Handler of the replies to a query
+	 */
+	public interface QueryHandler {
+
+		/**
+		 * Documents returned by a single reply
+		 * 
+		 * @param documents
+		 */
+		void onDocuments(List<DBObject> documents);
+
+		/**
+		 * All documents matching the query have been returned
+		 */
+		void onComplete();
+
+		/**
+		 * Query failed
+		 * 
+		 * @param error
+		 */
+		void onFailure(DhtException error);
+	}
+
+	/**
+	 * Default number of connections opened to the server
+	 */
+	public static final int DEFAULT_CONNECTIONS = 4;
+
+	/**
+	 * Default milliseconds to wait for connecting and for each reply
+	 */
+	public static final long DEFAULT_TIMEOUT = 30 * 1000;
+
+	/**
+	 * Maximum milliseconds between checks for timed out queries
+	 */
+	private static final long TIMEOUT_CHECK_INTERVAL = 1000;
+
+	private static final int OP_REPLY = 1;
+
+	private static final int OP_QUERY = 2004;
+
+	private static final int OP_GET_MORE = 2005;
+
+	private static final int HEADER_LENGTH = 16;
+
+	private static final int REPLY_HEADER_LENGTH = HEADER_LENGTH + 20;
+
+	private static final int FLAG_CURSOR_NOT_FOUND = 1;
+
+	private static final int FLAG_QUERY_FAILURE = 2;
+
+	private static final int FLAG_SLAVE_OK = 4;
+
+	/**
+	 * Query in progress
+	 */
+	private static class Query {
+
+		final String collection;
+
+		final int batchSize;
+
+		final DBDecoderFactory decoder;
+
+		final QueryHandler handler;
+
+		volatile long deadline;
+
+		Query(String collection, int batchSize, DBDecoderFactory decoder,
+				QueryHandler handler) {
+			this.collection = collection;
+			this.batchSize = batchSize;
+			this.decoder = decoder;
+			this.handler = handler;
+		}
+	}
+
+	/**
+	 * Connection to the server with queued requests and pending queries
+	 */
+	private class Connection {
+
+		final Queue<ByteBuffer> writes = new ConcurrentLinkedQueue<ByteBuffer>();
+
+		final Map<Integer, Query> pending = new ConcurrentHashMap<Integer, Query>();
+
+		final ByteBuffer length = ByteBuffer.allocate(4).order(
+				ByteOrder.LITTLE_ENDIAN);
+
+		SocketChannel channel;
+
+		SelectionKey key;
+
+		ByteBuffer message;
+
+		synchronized void send(int requestId, Query query, ByteBuffer request)
+				throws DhtException {
+			if (channel == null || !channel.isOpen())
+				open();
+			long wait = timeout;
+			query.deadline = wait > 0 ? System.currentTimeMillis() + wait : 0;
+			pending.put(Integer.valueOf(requestId), query);
+			writes.add(request);
+			ready.add(this);
+			selector.wakeup();
+		}
+
+		private void open() throws DhtException {
+			try {
+				channel = SocketChannel.open();
+				channel.socket().connect(address,
+						(int) Math.min(timeout, Integer.MAX_VALUE));
+				channel.socket().setTcpNoDelay(true);
+				channel.configureBlocking(false);
+			} catch (IOException e) {
+				try {
+					if (channel != null)
+						channel.close();
+				} catch (IOException ignored) {
+					// Ignored
+				}
+				throw new DhtException(e);
+			}
+			key = null;
+			message = null;
+			length.clear();
+		}
+
+		synchronized void register() throws ClosedChannelException {
+			int ops = SelectionKey.OP_READ;
+			if (!writes.isEmpty())
+				ops |= SelectionKey.OP_WRITE;
+			if (key == null || !key.isValid())
+				key = channel.register(selector, ops, this);
+			else
+				key.interestOps(ops);
+		}
+
+		void write() throws IOException {
+			ByteBuffer buffer;
+			while ((buffer = writes.peek()) != null) {
+				channel.write(buffer);
+				if (buffer.hasRemaining())
+					return;
+				writes.poll();
+			}
+			key.interestOps(SelectionKey.OP_READ);
+		}
+
+		void read() throws IOException {
+			for (;;) {
+				if (message == null) {
+					if (channel.read(length) == -1)
+						throw new ClosedChannelException();
+					if (length.hasRemaining())
+						return;
+					int size = length.getInt(0);
+					if (size < REPLY_HEADER_LENGTH)
+						throw new IOException("Invalid message length " + size);
+					message = ByteBuffer.allocate(size);
+					message.position(length.capacity());
+					length.clear();
+				}
+				if (channel.read(message) == -1)
+					throw new ClosedChannelException();
+				if (message.hasRemaining())
+					return;
+				byte[] reply = message.array();
+				message = null;
+				receive(this, reply);
+			}
+		}
+
+		boolean isTimedOut(long now) {
+			for (Query query : pending.values())
+				if (query.deadline != 0 && now > query.deadline)
+					return true;
+			return false;
+		}
+
+		synchronized void fail(DhtException error) {
+			try {
+				if (channel != null)
+					channel.close();
+			} catch (IOException ignored) {
+				// Ignored
+			}
+			writes.clear();
+			List<Query> failed = new ArrayList<Query>(pending.values());
+			pending.clear();
+			for (Query query : failed)
+				query.handler.onFailure(error);
+		}
+	}
+
+	private final InetSocketAddress address;
+
+	private final Selector selector;
+
+	private final Connection[] connections;
+
+	private final Queue<Connection> ready = new ConcurrentLinkedQueue<Connection>();
+
+	private final AtomicInteger requestIds = new AtomicInteger();
+
+	private final AtomicInteger nextConnection = new AtomicInteger();
+
+	private final Thread thread;
+
+	private volatile boolean closed;
+
+	private volatile long timeout = DEFAULT_TIMEOUT;
+
+	/**
+	 * Create client for server with default number of connections
+	 * 
+	 * @param host
+	 *            host with optional port
+	 * @throws IOException
+	 */
+	public AsyncMongoClient(String host) throws IOException {
+		this(host, DEFAULT_CONNECTIONS);
+	}
+
+	/**
+	 * Create client for server
+	 * 
+	 * @param host
+	 *            host with optional port
+	 * @param connections
+	 *            number of connections opened to the server
+	 * @throws IOException
+	 */
+	public AsyncMongoClient(String host, int connections) throws IOException {
+		address = new ServerAddress(host).getSocketAddress();
+		selector = Selector.open();
+		this.connections = new Connection[Math.max(1, connections)];
+		for (int i = 0; i < this.connections.length; i++)
+			this.connections[i] = new Connection();
+		thread = new Thread(new Runnable() {
+
+			public void run() {
+				select();
+			}
+		}, "AsyncMongoClient " + host);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Set milliseconds to wait for connecting and for each reply
+	 * 
+	 * @param timeout
+	 *            0 to wait indefinitely
+	 * @return this client
+	 */
+	public AsyncMongoClient setTimeout(long timeout) {
+		if (timeout < 0)
+			throw new IllegalArgumentException("Timeout must not be negative");
+		this.timeout = timeout;
+		selector.wakeup();
+		return this;
+	}
+
+	/**
+	 * @return timeout
+	 */
+	public long getTimeout() {
+		return timeout;
+	}
+
+	private static void writeInt(ByteArrayOutputStream out, int value) {
+		out.write(value);
+		out.write(value >>> 8);
+		out.write(value >>> 16);
+		out.write(value >>> 24);
+	}
+
+	private static void writeLong(ByteArrayOutputStream out, long value) {
+		writeInt(out, (int) value);
+		writeInt(out, (int) (value >>> 32));
+	}
+
+	private static void writeCString(ByteArrayOutputStream out, String value) {
+		byte[] bytes = Constants.encode(value);
+		out.write(bytes, 0, bytes.length);
+		out.write(0);
+	}
+
+	private static int readInt(byte[] buffer, int offset) {
+		return (buffer[offset] & 0xff) | (buffer[offset + 1] & 0xff) << 8
+				| (buffer[offset + 2] & 0xff) << 16
+				| (buffer[offset + 3] & 0xff) << 24;
+	}
+
+	private static long readLong(byte[] buffer, int offset) {
+		return (readInt(buffer, offset) & 0xffffffffL)
+				| ((long) readInt(buffer, offset + 4)) << 32;
+	}
+
+	private static ByteBuffer createMessage(ByteArrayOutputStream out) {
+		byte[] message = out.toByteArray();
+		message[0] = (byte) message.length;
+		message[1] = (byte) (message.length >>> 8);
+		message[2] = (byte) (message.length >>> 16);
+		message[3] = (byte) (message.length >>> 24);
+		return ByteBuffer.wrap(message);
+	}
+
+	private static ByteArrayOutputStream createHeader(int requestId,
+			int opCode) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		writeInt(out, 0);
+		writeInt(out, requestId);
+		writeInt(out, 0);
+		writeInt(out, opCode);
+		return out;
+	}
+
+	private static int getReturnCount(int batchSize) {
+		return batchSize > 1 ? batchSize : 0;
+	}
+
+	/**
+	 * Query collection on the primary
+	 * 
+	 * @param collection
+	 *            full name of collection including the database name
+	 * @param query
+	 * @param fields
+	 *            may be null to return all fields
+	 * @param batchSize
+	 *            number of documents per reply, 0 for server default
+	 * @param decoder
+	 *            may be null to use default decoder
+	 * @param handler
+	 * @throws DhtException
+	 */
+	public void query(String collection, DBObject query, DBObject fields,
+			int batchSize, DBDecoderFactory decoder, QueryHandler handler)
+			throws DhtException {
+		query(collection, query, fields, batchSize, null, decoder, handler);
+	}
+
+	/**
+	 * Query collection
+	 * 
+	 * @param collection
+	 *            full name of collection including the database name
+	 * @param query
+	 * @param fields
+	 *            may be null to return all fields
+	 * @param batchSize
+	 *            number of documents per reply, 0 for server default
+	 * @param preference
+	 *            may be null to only query a primary
+	 * @param decoder
+	 *            may be null to use default decoder
+	 * @param handler
+	 * @throws DhtException
+	 */
+	public void query(String collection, DBObject query, DBObject fields,
+			int batchSize, ReadPreference preference,
+			DBDecoderFactory decoder, QueryHandler handler)
+			throws DhtException {
+		if (closed)
+			throw new DhtException("Client closed");
+		int requestId = requestIds.incrementAndGet();
+		ByteArrayOutputStream out = createHeader(requestId, OP_QUERY);
+		boolean slaveOk = preference != null
+				&& preference != ReadPreference.PRIMARY;
+		writeInt(out, slaveOk ? FLAG_SLAVE_OK : 0);
+		writeCString(out, collection);
+		writeInt(out, 0);
+		writeInt(out, getReturnCount(batchSize));
+		DefaultDBEncoder encoder = new DefaultDBEncoder();
+		byte[] encoded = encoder.encode(query);
+		out.write(encoded, 0, encoded.length);
+		if (fields != null) {
+			encoded = encoder.encode(fields);
+			out.write(encoded, 0, encoded.length);
+		}
+		Connection connection = connections[(nextConnection
+				.getAndIncrement() & Integer.MAX_VALUE) % connections.length];
+		connection.send(requestId, new Query(collection, batchSize, decoder,
+				handler), createMessage(out));
+	}
+
+	private void getMore(Connection connection, Query query, long cursorId)
+			throws DhtException {
+		int requestId = requestIds.incrementAndGet();
+		ByteArrayOutputStream out = createHeader(requestId, OP_GET_MORE);
+		writeInt(out, 0);
+		writeCString(out, query.collection);
+		writeInt(out, getReturnCount(query.batchSize));
+		writeLong(out, cursorId);
+		connection.send(requestId, query, createMessage(out));
+	}
+
+	private void receive(Connection connection, byte[] reply) {
+		if (readInt(reply, 12) != OP_REPLY)
+			return;
+		Query query = connection.pending.remove(Integer.valueOf(readInt(
+				reply, 8)));
+		if (query == null)
+			return;
+		try {
+			int flags = readInt(reply, HEADER_LENGTH);
+			long cursorId = readLong(reply, HEADER_LENGTH + 4);
+			int count = readInt(reply, HEADER_LENGTH + 16);
+			List<DBObject> documents = new ArrayList<DBObject>(count);
+			DBDecoder decoder = query.decoder != null ? query.decoder
+					.create() : new DefaultDBDecoder();
+			ByteArrayInputStream in = new ByteArrayInputStream(reply,
+					REPLY_HEADER_LENGTH, reply.length - REPLY_HEADER_LENGTH);
+			for (int i = 0; i < count; i++)
+				documents.add(decoder.decode(in, (DBCollection) null));
+
+			if ((flags & FLAG_CURSOR_NOT_FOUND) != 0)
+				throw new DhtException("Cursor not found");
+			if ((flags & FLAG_QUERY_FAILURE) != 0)
+				throw new DhtException(documents.isEmpty() ? "Query failed"
+						: MongoUtils.getString(documents.get(0), "$err"));
+
+			query.handler.onDocuments(documents);
+			if (cursorId != 0)
+				getMore(connection, query, cursorId);
+			else
+				query.handler.onComplete();
+		} catch (DhtException e) {
+			query.handler.onFailure(e);
+		} catch (IOException e) {
+			query.handler.onFailure(new DhtException(e));
+		} catch (RuntimeException e) {
+			query.handler.onFailure(new DhtException(e));
+		}
+	}
+
+	private void checkTimeouts() {
+		long now = System.currentTimeMillis();
+		for (Connection connection : connections)
+			if (connection.isTimedOut(now))
+				connection.fail(new DhtException("Query timed out after "
+						+ timeout + " milliseconds"));
+	}
+
+	private void select() {
+		while (!closed) {
+			long wait = timeout;
+			try {
+				if (wait > 0)
+					selector.select(Math.min(wait, TIMEOUT_CHECK_INTERVAL));
+				else
+					selector.select();
+			} catch (IOException e) {
+				break;
+			}
+			Connection connection;
+			while ((connection = ready.poll()) != null)
+				try {
+					connection.register();
+				} catch (IOException e) {
+					connection.fail(new DhtException(e));
+				}
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				connection = (Connection) key.attachment();
+				try {
+					if (key.isValid() && key.isWritable())
+						connection.write();
+					if (key.isValid() && key.isReadable())
+						connection.read();
+				} catch (IOException e) {
+					key.cancel();
+					connection.fail(new DhtException(e));
+				}
+			}
+			if (wait > 0)
+				checkTimeouts();
+		}
+		DhtException error = new DhtException("Client closed");
+		for (Connection connection : connections)
+			connection.fail(error);
+	}
+
+	/**
+	 * Close all connections and fail pending queries
+	 * 
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		closed = true;
+		selector.wakeup();
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		selector.close();
+	}
+}
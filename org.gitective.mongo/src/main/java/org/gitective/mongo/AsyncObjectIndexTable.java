@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2011 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.gitective.mongo;
+
+import static org.gitective.mongo.IPropertyConstants.ID;
+import static org.gitective.mongo.IPropertyConstants.VALUES;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.mongodb.DBObject;
+import com.mongodb.ReadPreference;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.jgit.storage.dht.AsyncCallback;
+import org.eclipse.jgit.storage.dht.ChunkKey;
+import org.eclipse.jgit.storage.dht.DhtException;
+import org.eclipse.jgit.storage.dht.ObjectIndexKey;
+import org.eclipse.jgit.storage.dht.ObjectInfo;
+import org.eclipse.jgit.storage.dht.spi.Context;
+import org.eclipse.jgit.storage.dht.spi.ObjectIndexTable;
+import org.eclipse.jgit.storage.dht.spi.WriteBuffer;
+
+/**
+ * Object index table that looks up objects using an {@link AsyncMongoClient}
+ * <p>
+ * Lookups return immediately and callbacks are called from the I/O thread of
+ * the client. All batches of a lookup are sent at once. Queries are created
+ * and documents are read by the given {@link MongoObjectIndexTable} which is
+ * also used for all writes.
+ * <p>
+ * Lookups use the read preference of the table. When it allows reading from
+ * secondaries, lookups are sent to the secondary client if one is set and
+ * keys not found are looked up again on the primary unless missing results
+ * are acceptable.
+ */
+public class AsyncObjectIndexTable implements ObjectIndexTable {
+
+	private final MongoObjectIndexTable table;
+
+	private final AsyncMongoClient client;
+
+	private AsyncMongoClient secondaryClient;
+
+	/**
+	 * @param table
+	 * @param client
+	 *            client connected to the primary
+	 */
+	public AsyncObjectIndexTable(MongoObjectIndexTable table,
+			AsyncMongoClient client) {
+		this.table = table;
+		this.client = client;
+	}
+
+	/**
+	 * Set client used for lookups that may read from a secondary
+	 * 
+	 * @param secondaryClient
+	 *            may be null to send all lookups to the primary client
+	 * @return this table
+	 */
+	public AsyncObjectIndexTable setSecondaryClient(
+			AsyncMongoClient secondaryClient) {
+		this.secondaryClient = secondaryClient;
+		return this;
+	}
+
+	private boolean isSecondaryRead(ReadPreference preference) {
+		return preference != null && preference != ReadPreference.PRIMARY;
+	}
+
+	private void get(final List<ObjectIndexKey> keys,
+			final ReadPreference preference, final boolean fallback,
+			Map<ObjectIndexKey, Collection<ObjectInfo>> found,
+			AsyncCallback<Map<ObjectIndexKey, Collection<ObjectInfo>>> callback) {
+		AsyncResultHandler<Map<ObjectIndexKey, Collection<ObjectInfo>>> handler = new AsyncResultHandler<Map<ObjectIndexKey, Collection<ObjectInfo>>>(
+				found, callback) {
+
+			protected void add(DBObject document)
+					throws InvalidProtocolBufferException {
+				if (!(document.get(VALUES) instanceof DBObject))
+					return;
+				ObjectIndexKey key = ObjectIndexKey.fromString(MongoUtils
+						.getKey(document, ID));
+				Collection<ObjectInfo> chunks = result.get(key);
+				if (chunks == null) {
+					chunks = new ArrayList<ObjectInfo>(4);
+					result.put(key, chunks);
+				}
+				table.addValues(document, chunks);
+			}
+
+			protected void complete(
+					AsyncCallback<Map<ObjectIndexKey, Collection<ObjectInfo>>> callback) {
+				List<ObjectIndexKey> missing = new ArrayList<ObjectIndexKey>();
+				if (fallback && isSecondaryRead(preference))
+					for (ObjectIndexKey key : keys)
+						if (!result.containsKey(key))
+							missing.add(key);
+				if (!missing.isEmpty())
+					get(missing, ReadPreference.PRIMARY, false, result,
+							callback);
+				else
+					callback.onSuccess(result);
+			}
+		};
+		AsyncMongoClient target = client;
+		if (secondaryClient != null && isSecondaryRead(preference))
+			target = secondaryClient;
+		try {
+			target.query(table.getCollection().getFullName(),
+					table.createQuery(keys),
+					MongoObjectIndexTable.VALUES_FIELDS,
+					table.getCursorBatchSize(), preference, null, handler);
+		} catch (DhtException e) {
+			handler.onFailure(e);
+		}
+	}
+
+	public void get(Context options, Set<ObjectIndexKey> objects,
+			AsyncCallback<Map<ObjectIndexKey, Collection<ObjectInfo>>> callback) {
+		final boolean fallback = options != Context.FAST_MISSING_OK;
+		new ParallelLookup<ObjectIndexKey, Map<ObjectIndexKey, Collection<ObjectInfo>>>(
+				ParallelLookup.DIRECT, table.getLookupKeys(options, objects),
+				table.getBatchSize(), callback) {
+
+			protected Map<ObjectIndexKey, Collection<ObjectInfo>> createResult() {
+				return new HashMap<ObjectIndexKey, Collection<ObjectInfo>>();
+			}
+
+			protected void addResult(
+					Map<ObjectIndexKey, Collection<ObjectInfo>> result,
+					Map<ObjectIndexKey, Collection<ObjectInfo>> partial) {
+				result.putAll(partial);
+			}
+
+			protected void lookup(
+					Set<ObjectIndexKey> batch,
+					AsyncCallback<Map<ObjectIndexKey, Collection<ObjectInfo>>> batchCallback) {
+				get(new ArrayList<ObjectIndexKey>(batch),
+						table.getReadPreference(), fallback, createResult(),
+						batchCallback);
+			}
+		}.start(Integer.MAX_VALUE);
+	}
+
+	public void add(ObjectIndexKey objId, ObjectInfo info, WriteBuffer buffer)
+			throws DhtException {
+		table.add(objId, info, buffer);
+	}
+
+	public void remove(ObjectIndexKey objId, ChunkKey chunk, WriteBuffer buffer)
+			throws DhtException {
+		table.remove(objId, chunk, buffer);
+	}
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2011 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.gitective.mongo;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.mongodb.DBObject;
+
+import java.util.List;
+
+import org.eclipse.jgit.storage.dht.AsyncCallback;
+import org.eclipse.jgit.storage.dht.DhtException;
+
+/**
+ * Query handler that adds each returned document to a result passed to a
+ * callback once the query completes
+ * 
+ * @param <T>
+ *            result type
+ */
+abstract class AsyncResultHandler<T> implements AsyncMongoClient.QueryHandler {
+
+	/**
+	 * Result documents are added to
+	 */
+	protected final T result;
+
+	private final AsyncCallback<T> callback;
+
+	private boolean failed;
+
+	/**
+	 * @param result
+	 * @param callback
+	 */
+	AsyncResultHandler(T result, AsyncCallback<T> callback) {
+		this.result = result;
+		this.callback = callback;
+	}
+
+	/**
+	 * Add document to result
+	 * 
+	 * @param document
+	 * @throws InvalidProtocolBufferException
+	 */
+	protected abstract void add(DBObject document)
+			throws InvalidProtocolBufferException;
+
+	/**
+	 * Called with the result once the query completes
+	 * 
+	 * @param callback
+	 */
+	protected void complete(AsyncCallback<T> callback) {
+		callback.onSuccess(result);
+	}
+
+	public void onDocuments(List<DBObject> documents) {
+		if (failed)
+			return;
+		try {
+			for (DBObject document : documents)
+				add(document);
+		} catch (InvalidProtocolBufferException e) {
+			onFailure(new DhtException(e));
+		}
+	}
+
+	public void onComplete() {
+		if (!failed)
+			complete(callback);
+	}
+
+	public void onFailure(DhtException error) {
+		if (failed)
+			return;
+		failed = true;
+		callback.onFailure(error);
+	}
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2011 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.gitective.mongo;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread-safe Bloom filter over pre-computed 128-bit hashes
+ */
+public class BloomFilter {
+
+	private final AtomicLongArray bits;
+
+	private final long bitCount;
+
+	private final int hashCount;
+
+	/**
+	 * Create filter sized for the expected number of entries and false
+	 * positive rate
+	 * 
+	 * @param expectedEntries
+	 * @param falsePositiveRate
+	 */
+	public BloomFilter(long expectedEntries, double falsePositiveRate) {
+		if (falsePositiveRate <= 0 || falsePositiveRate >= 1)
+			throw new IllegalArgumentException(
+					"False positive rate must be between 0 and 1");
+		expectedEntries = Math.max(1, expectedEntries);
+		long size = (long) Math.ceil(-expectedEntries
+				* Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+		size = Math.max(64, Math.min(size, 64L * Integer.MAX_VALUE));
+		bits = new AtomicLongArray((int) ((size + 63) / 64));
+		bitCount = bits.length() * 64L;
+		hashCount = Math.max(1,
+				(int) Math.round((double) size / expectedEntries * Math.log(2)));
+	}
+
+	/**
+	 * Add all entries of the given filter to this filter
+	 * 
+	 * @param other
+	 *            filter created with the same expected entries and false
+	 *            positive rate
+	 */
+	public void addAll(BloomFilter other) {
+		if (other.bitCount != bitCount || other.hashCount != hashCount)
+			throw new IllegalArgumentException("Filters have different sizes");
+		for (int i = 0; i < bits.length(); i++) {
+			long mask = other.bits.get(i);
+			for (;;) {
+				long current = bits.get(i);
+				if ((current | mask) == current
+						|| bits.compareAndSet(i, current, current | mask))
+					break;
+			}
+		}
+	}
+
+	/**
+	 * Get size of filter
+	 * 
+	 * @return size in bytes
+	 */
+	public long getSize() {
+		return bitCount / 8;
+	}
+
+	/**
+	 * Add hash to filter
+	 * 
+	 * @param hash1
+	 * @param hash2
+	 */
+	public void add(long hash1, long hash2) {
+		long combined = hash1;
+		for (int i = 0; i < hashCount; i++) {
+			long bit = (combined & Long.MAX_VALUE) % bitCount;
+			int index = (int) (bit >>> 6);
+			long mask = 1L << bit;
+			for (;;) {
+				long current = bits.get(index);
+				if ((current & mask) != 0
+						|| bits.compareAndSet(index, current, current | mask))
+					break;
+			}
+			combined += hash2;
+		}
+	}
+
+	/**
+	 * Might the given hash have been added to the filter?
+	 * 
+	 * @param hash1
+	 * @param hash2
+	 * @return false if definitely never added, true otherwise
+	 */
+	public boolean mightContain(long hash1, long hash2) {
+		long combined = hash1;
+		for (int i = 0; i < hashCount; i++) {
+			long bit = (combined & Long.MAX_VALUE) % bitCount;
+			if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0)
+				return false;
+			combined += hash2;
+		}
+		return true;
+	}
+}
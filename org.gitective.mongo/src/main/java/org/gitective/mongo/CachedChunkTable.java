@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2011 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.gitective.mongo;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.jgit.generated.storage.dht.proto.GitStore.ChunkMeta;
+import org.eclipse.jgit.storage.dht.AsyncCallback;
+import org.eclipse.jgit.storage.dht.ChunkKey;
+import org.eclipse.jgit.storage.dht.DhtException;
+import org.eclipse.jgit.storage.dht.PackChunk.Members;
+import org.eclipse.jgit.storage.dht.spi.ChunkTable;
+import org.eclipse.jgit.storage.dht.spi.Context;
+import org.eclipse.jgit.storage.dht.spi.WriteBuffer;
+
+/**
+ * Chunk table that answers lookups from a {@link ChunkCache} and then a
+ * {@link DiskChunkCache} before using a delegate chunk table
+ */
+public class CachedChunkTable implements ChunkTable {
+
+	private final ChunkTable delegate;
+
+	private final ChunkCache cache;
+
+	private final DiskChunkCache diskCache;
+
+	/**
+	 * @param delegate
+	 * @param cache
+	 */
+	public CachedChunkTable(ChunkTable delegate, ChunkCache cache) {
+		this(delegate, cache, null);
+	}
+
+	/**
+	 * @param delegate
+	 * @param cache
+	 *            may be null to only use disk cache
+	 * @param diskCache
+	 *            may be null to only use memory cache
+	 */
+	public CachedChunkTable(ChunkTable delegate, ChunkCache cache,
+			DiskChunkCache diskCache) {
+		this.delegate = delegate;
+		this.cache = cache;
+		this.diskCache = diskCache;
+	}
+
+	/**
+	 * Get memory cache
+	 * 
+	 * @return cache, may be null
+	 */
+	public ChunkCache getCache() {
+		return cache;
+	}
+
+	/**
+	 * Get disk cache
+	 * 
+	 * @return cache, may be null
+	 */
+	public DiskChunkCache getDiskCache() {
+		return diskCache;
+	}
+
+	private Members getCached(ChunkKey key) {
+		Members members = null;
+		if (cache != null)
+			members = cache.get(key);
+		if (members == null && diskCache != null) {
+			members = diskCache.get(key);
+			if (members != null && cache != null)
+				cache.put(members);
+		}
+		return members;
+	}
+
+	private ChunkMeta getCachedMeta(ChunkKey key) {
+		ChunkMeta meta = null;
+		if (cache != null)
+			meta = cache.getMeta(key);
+		if (meta == null && diskCache != null) {
+			Members members = diskCache.get(key);
+			if (members != null) {
+				if (cache != null)
+					cache.put(members);
+				if (members.hasMeta())
+					meta = members.getMeta();
+			}
+		}
+		return meta;
+	}
+
+	private void invalidate(ChunkKey key) {
+		if (cache != null)
+			cache.remove(key);
+		if (diskCache != null)
+			diskCache.remove(key);
+	}
+
+	public void get(Context options, Set<ChunkKey> keys,
+			final AsyncCallback<Collection<Members>> callback) {
+		final List<Members> out = new ArrayList<Members>(keys.size());
+		Set<ChunkKey> missing = new HashSet<ChunkKey>();
+		for (ChunkKey key : keys) {
+			Members members = getCached(key);
+			if (members != null)
+				out.add(members);
+			else
+				missing.add(key);
+		}
+		if (missing.isEmpty()) {
+			callback.onSuccess(out);
+			return;
+		}
+
+		delegate.get(options, missing,
+				new AsyncCallback<Collection<Members>>() {
+
+					public void onSuccess(Collection<Members> result) {
+						for (Members members : result) {
+							if (cache != null)
+								cache.put(members);
+							if (diskCache != null)
+								diskCache.put(members);
+							out.add(members);
+						}
+						callback.onSuccess(out);
+					}
+
+					public void onFailure(DhtException error) {
+						callback.onFailure(error);
+					}
+				});
+	}
+
+	public void getMeta(Context options, Set<ChunkKey> keys,
+			final AsyncCallback<Map<ChunkKey, ChunkMeta>> callback) {
+		final Map<ChunkKey, ChunkMeta> out = new HashMap<ChunkKey, ChunkMeta>();
+		Set<ChunkKey> missing = new HashSet<ChunkKey>();
+		for (ChunkKey key : keys) {
+			ChunkMeta meta = getCachedMeta(key);
+			if (meta != null)
+				out.put(key, meta);
+			else
+				missing.add(key);
+		}
+		if (missing.isEmpty()) {
+			callback.onSuccess(out);
+			return;
+		}
+
+		delegate.getMeta(options, missing,
+				new AsyncCallback<Map<ChunkKey, ChunkMeta>>() {
+
+					public void onSuccess(Map<ChunkKey, ChunkMeta> result) {
+						if (cache != null)
+							for (Map.Entry<ChunkKey, ChunkMeta> entry : result
+									.entrySet())
+								cache.putMeta(entry.getKey(), entry.getValue());
+						out.putAll(result);
+						callback.onSuccess(out);
+					}
+
+					public void onFailure(DhtException error) {
+						callback.onFailure(error);
+					}
+				});
+	}
+
+	public void put(Members chunk, WriteBuffer buffer) throws DhtException {
+		invalidate(chunk.getChunkKey());
+		delegate.put(chunk, buffer);
+	}
+
+	public void remove(ChunkKey key, WriteBuffer buffer) throws DhtException {
+		invalidate(key);
+		delegate.remove(key, buffer);
+	}
+}
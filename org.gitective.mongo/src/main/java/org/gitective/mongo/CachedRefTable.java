@@ -0,0 +1,223 @@
+/*
+ * Copyright (c) 2011 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.gitective.mongo;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeoutException;
+
+import org.eclipse.jgit.generated.storage.dht.proto.GitStore.RefData;
+import org.eclipse.jgit.storage.dht.DhtException;
+import org.eclipse.jgit.storage.dht.RefKey;
+import org.eclipse.jgit.storage.dht.RepositoryKey;
+import org.eclipse.jgit.storage.dht.spi.Context;
+import org.eclipse.jgit.storage.dht.spi.RefTable;
+
+/**
+ * Ref table that caches all refs of a repository read from a delegate ref
+ * table
+ * <p>
+ * Cached refs of a repository are dropped when a ref of the repository is
+ * updated through this table, when a {@link RefUpdateFeed} reports an update
+ * from another process, and once they are older than the maximum age. Reads
+ * with {@link Context#READ_REPAIR} always use the delegate.
+ */
+public class CachedRefTable implements RefTable, RefUpdateFeed.Listener {
+
+	/**
+	 * Default milliseconds refs are cached
+	 */
+	public static final long DEFAULT_MAX_AGE = 60 * 1000;
+
+	/**
+	 * Refs of a repository
+	 */
+	private static class Entry {
+
+		final Map<RefKey, RefData> refs;
+
+		final long loaded;
+
+		Entry(Map<RefKey, RefData> refs, long loaded) {
+			this.refs = refs;
+			this.loaded = loaded;
+		}
+	}
+
+	private final RefTable delegate;
+
+	private final RefUpdateFeed feed;
+
+	private final long maxAge;
+
+	private final ConcurrentMap<RepositoryKey, Entry> entries = new ConcurrentHashMap<RepositoryKey, Entry>();
+
+	/**
+	 * Clock values at which repositories were invalidated, only kept while a
+	 * load started before that value is running
+	 */
+	private final Map<RepositoryKey, Long> invalidated = new HashMap<RepositoryKey, Long>();
+
+	/**
+	 * Clock values at which the running loads started
+	 */
+	private final PriorityQueue<Long> loading = new PriorityQueue<Long>();
+
+	private long clock;
+
+	private long cleared;
+
+	/**
+	 * Create cache only invalidated by updates through this table
+	 * 
+	 * @param delegate
+	 */
+	public CachedRefTable(RefTable delegate) {
+		this(delegate, null, DEFAULT_MAX_AGE);
+	}
+
+	/**
+	 * @param delegate
+	 * @param feed
+	 *            may be null to only invalidate on updates through this table
+	 * @param maxAge
+	 *            milliseconds refs are cached
+	 */
+	public CachedRefTable(RefTable delegate, RefUpdateFeed feed, long maxAge) {
+		this.delegate = delegate;
+		this.feed = feed;
+		this.maxAge = maxAge;
+		if (feed != null)
+			feed.addListener(this);
+	}
+
+	/**
+	 * Drop cached refs of repository
+	 * 
+	 * @param repository
+	 */
+	public synchronized void invalidate(RepositoryKey repository) {
+		long now = ++clock;
+		if (!loading.isEmpty())
+			invalidated.put(repository, Long.valueOf(now));
+		entries.remove(repository);
+	}
+
+	/**
+	 * Drop all cached refs
+	 */
+	public synchronized void clear() {
+		cleared = ++clock;
+		invalidated.clear();
+		entries.clear();
+	}
+
+	public void onUpdate(RepositoryKey repository) {
+		invalidate(repository);
+	}
+
+	public void onReset() {
+		clear();
+	}
+
+	private boolean isCurrent(RepositoryKey repository, long loadStart) {
+		if (cleared > loadStart)
+			return false;
+		Long invalidatedAt = invalidated.get(repository);
+		return invalidatedAt == null || invalidatedAt.longValue() <= loadStart;
+	}
+
+	/**
+	 * Remove invalidations that no running load started before
+	 */
+	private void prune() {
+		if (invalidated.isEmpty())
+			return;
+		Long oldest = loading.peek();
+		if (oldest == null) {
+			invalidated.clear();
+			return;
+		}
+		Iterator<Long> stamps = invalidated.values().iterator();
+		while (stamps.hasNext())
+			if (stamps.next().longValue() <= oldest.longValue())
+				stamps.remove();
+	}
+
+	public Map<RefKey, RefData> getAll(Context options, RepositoryKey repository)
+			throws DhtException, TimeoutException {
+		long now = System.currentTimeMillis();
+		if (options != Context.READ_REPAIR) {
+			Entry entry = entries.get(repository);
+			if (entry != null && now - entry.loaded < maxAge)
+				return new HashMap<RefKey, RefData>(entry.refs);
+		}
+
+		Long loadStart;
+		synchronized (this) {
+			loadStart = Long.valueOf(clock);
+			loading.add(loadStart);
+		}
+		Map<RefKey, RefData> refs = null;
+		try {
+			refs = delegate.getAll(options, repository);
+		} finally {
+			synchronized (this) {
+				loading.remove(loadStart);
+				if (refs != null && isCurrent(repository, loadStart.longValue()))
+					entries.put(repository, new Entry(
+							new HashMap<RefKey, RefData>(refs), now));
+				prune();
+			}
+		}
+		return refs;
+	}
+
+	private void updated(RefKey refKey) {
+		RepositoryKey repository = refKey.getRepositoryKey();
+		invalidate(repository);
+		if (feed != null)
+			feed.publish(repository);
+	}
+
+	public boolean compareAndPut(RefKey refKey, RefData oldData, RefData newData)
+			throws DhtException, TimeoutException {
+		try {
+			return delegate.compareAndPut(refKey, oldData, newData);
+		} finally {
+			updated(refKey);
+		}
+	}
+
+	public boolean compareAndRemove(RefKey refKey, RefData oldData)
+			throws DhtException, TimeoutException {
+		try {
+			return delegate.compareAndRemove(refKey, oldData);
+		} finally {
+			updated(refKey);
+		}
+	}
+}
@@ -0,0 +1,284 @@
+/*
+ * Copyright (c) 2011 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.gitective.mongo;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jgit.generated.storage.dht.proto.GitStore.ChunkMeta;
+import org.eclipse.jgit.storage.dht.ChunkKey;
+import org.eclipse.jgit.storage.dht.PackChunk.Members;
+
+/**
+ * In-memory cache of chunks bounded by the total size of the cached chunks
+ * <p>
+ * Entries are spread over segments that each hold an equal share of the size
+ * budget and evict their least recently used chunks independently.
+ */
+public class ChunkCache {
+
+	/**
+	 * Default number of segments
+	 */
+	public static final int DEFAULT_SEGMENTS = 16;
+
+	/**
+	 * Estimated memory used by a cache entry in addition to its chunk bytes
+	 */
+	private static final int ENTRY_OVERHEAD = 128;
+
+	private static class Entry {
+
+		final Members members;
+
+		final ChunkMeta meta;
+
+		final long size;
+
+		Entry(Members members, ChunkMeta meta, long size) {
+			this.members = members;
+			this.meta = meta;
+			this.size = size;
+		}
+	}
+
+	private class Segment {
+
+		private final LinkedHashMap<ChunkKey, Entry> entries = new LinkedHashMap<ChunkKey, Entry>(
+				16, 0.75F, true);
+
+		private final long maxSize;
+
+		private long size;
+
+		Segment(long maxSize) {
+			this.maxSize = maxSize;
+		}
+
+		synchronized Entry get(ChunkKey key) {
+			return entries.get(key);
+		}
+
+		synchronized void put(ChunkKey key, Entry entry) {
+			if (entry.size > maxSize)
+				return;
+			Entry previous = entries.put(key, entry);
+			if (previous != null)
+				size -= previous.size;
+			size += entry.size;
+			Iterator<Map.Entry<ChunkKey, Entry>> iter = entries.entrySet()
+					.iterator();
+			while (size > maxSize && iter.hasNext()) {
+				Entry evicted = iter.next().getValue();
+				iter.remove();
+				size -= evicted.size;
+				evictions.incrementAndGet();
+			}
+		}
+
+		synchronized void remove(ChunkKey key) {
+			Entry previous = entries.remove(key);
+			if (previous != null)
+				size -= previous.size;
+		}
+
+		synchronized long size() {
+			return size;
+		}
+
+		synchronized void clear() {
+			entries.clear();
+			size = 0;
+		}
+	}
+
+	private final Segment[] segments;
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * Create cache holding up to the given number of bytes
+	 * 
+	 * @param maxSize
+	 */
+	public ChunkCache(long maxSize) {
+		this(maxSize, DEFAULT_SEGMENTS);
+	}
+
+	/**
+	 * Create cache holding up to the given number of bytes
+	 * 
+	 * @param maxSize
+	 * @param segmentCount
+	 */
+	public ChunkCache(long maxSize, int segmentCount) {
+		if (maxSize < 1)
+			throw new IllegalArgumentException("Size must be positive");
+		if (segmentCount < 1)
+			throw new IllegalArgumentException(
+					"Segment count must be positive");
+		segments = new Segment[segmentCount];
+		long segmentSize = Math.max(1, maxSize / segmentCount);
+		for (int i = 0; i < segmentCount; i++)
+			segments[i] = new Segment(segmentSize);
+	}
+
+	private Segment getSegment(ChunkKey key) {
+		return segments[(key.hashCode() & 0x7FFFFFFF) % segments.length];
+	}
+
+	private static long getSize(Members members) {
+		long size = ENTRY_OVERHEAD;
+		size += ChunkMembers.getDataLength(members);
+		size += ChunkMembers.getIndexLength(members);
+		if (members.hasMeta())
+			size += members.getMeta().getSerializedSize();
+		return size;
+	}
+
+	/**
+	 * Get cached chunk
+	 * 
+	 * @param key
+	 * @return members or null if not cached
+	 */
+	public Members get(ChunkKey key) {
+		Entry entry = getSegment(key).get(key);
+		if (entry != null && entry.members != null) {
+			hits.incrementAndGet();
+			return entry.members;
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Get cached chunk meta
+	 * 
+	 * @param key
+	 * @return meta or null if not cached
+	 */
+	public ChunkMeta getMeta(ChunkKey key) {
+		Entry entry = getSegment(key).get(key);
+		if (entry != null) {
+			if (entry.meta != null) {
+				hits.incrementAndGet();
+				return entry.meta;
+			}
+			if (entry.members != null && entry.members.hasMeta()) {
+				hits.incrementAndGet();
+				return entry.members.getMeta();
+			}
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Cache chunk
+	 * 
+	 * @param members
+	 */
+	public void put(Members members) {
+		ChunkKey key = members.getChunkKey();
+		getSegment(key).put(key, new Entry(members, null, getSize(members)));
+	}
+
+	/**
+	 * Cache chunk meta
+	 * <p>
+	 * Meta is not cached when the chunk itself is already cached
+	 * 
+	 * @param key
+	 * @param meta
+	 */
+	public void putMeta(ChunkKey key, ChunkMeta meta) {
+		Segment segment = getSegment(key);
+		Entry entry = segment.get(key);
+		if (entry != null && entry.members != null)
+			return;
+		segment.put(key, new Entry(null, meta, ENTRY_OVERHEAD
+				+ meta.getSerializedSize()));
+	}
+
+	/**
+	 * Remove chunk and meta from cache
+	 * 
+	 * @param key
+	 */
+	public void remove(ChunkKey key) {
+		getSegment(key).remove(key);
+	}
+
+	/**
+	 * Remove all entries from cache
+	 */
+	public void clear() {
+		for (Segment segment : segments)
+			segment.clear();
+	}
+
+	/**
+	 * Get number of bytes currently cached
+	 * 
+	 * @return size
+	 */
+	public long getSize() {
+		long size = 0;
+		for (Segment segment : segments)
+			size += segment.size();
+		return size;
+	}
+
+	/**
+	 * Get number of lookups answered from the cache
+	 * 
+	 * @return hit count
+	 */
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	/**
+	 * Get number of lookups not answered from the cache
+	 * 
+	 * @return miss count
+	 */
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/**
+	 * Get number of entries evicted to stay within the size limit
+	 * 
+	 * @return eviction count
+	 */
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+}
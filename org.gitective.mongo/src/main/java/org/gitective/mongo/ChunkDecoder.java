@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2011 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.gitective.mongo;
+
+import static org.gitective.mongo.IPropertyConstants.DATA;
+import static org.gitective.mongo.IPropertyConstants.ID;
+import static org.gitective.mongo.IPropertyConstants.INDEX;
+import static org.gitective.mongo.IPropertyConstants.META;
+
+import com.mongodb.DBCollection;
+import com.mongodb.DBDecoder;
+import com.mongodb.DBDecoderFactory;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.util.RawParseUtils;
+
+/**
+ * Decoder of chunk documents into {@link ChunkDocument} instances
+ * <p>
+ * Each document is read into a single buffer that the binary fields of the
+ * decoded chunk reference instead of being copied into a map of fields.
+ * Documents with fields other than an id and binary data, index, and meta
+ * fields, such as query errors, are decoded by the default decoder.
+ */
+public class ChunkDecoder extends DefaultDBDecoder {
+
+	/**
+	 * Factory of chunk decoders
+	 */
+	public static final DBDecoderFactory FACTORY = new DBDecoderFactory() {
+
+		public DBDecoder create() {
+			return new ChunkDecoder();
+		}
+	};
+
+	private static final byte TYPE_STRING = 0x02;
+
+	private static final byte TYPE_BINARY = 0x05;
+
+	private static final byte SUBTYPE_OLD_BINARY = 0x02;
+
+	private static final byte[] ID_NAME = Constants.encode(ID);
+
+	private static final byte[] DATA_NAME = Constants.encode(DATA);
+
+	private static final byte[] INDEX_NAME = Constants.encode(INDEX);
+
+	private static final byte[] META_NAME = Constants.encode(META);
+
+	private static int readInt(byte[] buffer, int offset) {
+		return (buffer[offset] & 0xff) | (buffer[offset + 1] & 0xff) << 8
+				| (buffer[offset + 2] & 0xff) << 16
+				| (buffer[offset + 3] & 0xff) << 24;
+	}
+
+	private static boolean isName(byte[] buffer, int offset, int length,
+			byte[] name) {
+		if (length != name.length)
+			return false;
+		for (int i = 0; i < length; i++)
+			if (buffer[offset + i] != name[i])
+				return false;
+		return true;
+	}
+
+	private static void readFully(InputStream in, byte[] buffer, int offset,
+			int length) throws IOException {
+		while (length > 0) {
+			int read = in.read(buffer, offset, length);
+			if (read == -1)
+				throw new EOFException();
+			offset += read;
+			length -= read;
+		}
+	}
+
+	public DBObject decode(InputStream in, DBCollection collection)
+			throws IOException {
+		byte[] size = new byte[4];
+		readFully(in, size, 0, size.length);
+		byte[] buffer = new byte[readInt(size, 0)];
+		System.arraycopy(size, 0, buffer, 0, size.length);
+		readFully(in, buffer, size.length, buffer.length - size.length);
+		return decode(buffer, collection);
+	}
+
+	public DBObject decode(byte[] buffer, DBCollection collection) {
+		DBObject document = decodeChunk(buffer);
+		return document != null ? document : super.decode(buffer, collection);
+	}
+
+	/**
+	 * Decode chunk document
+	 * 
+	 * @param buffer
+	 * @return document or null if buffer is not an encoded chunk document
+	 */
+	protected ChunkDocument decodeChunk(byte[] buffer) {
+		int end = readInt(buffer, 0) - 1;
+		int position = 4;
+		Object id = null;
+		int dataOffset = -1, dataLength = 0;
+		int indexOffset = -1, indexLength = 0;
+		int metaOffset = -1, metaLength = 0;
+		while (position < end) {
+			byte type = buffer[position++];
+			int nameOffset = position;
+			while (buffer[position] != 0)
+				position++;
+			int nameLength = position - nameOffset;
+			position++;
+
+			int length = readInt(buffer, position);
+			position += 4;
+			if (type == TYPE_STRING) {
+				if (!isName(buffer, nameOffset, nameLength, ID_NAME))
+					return null;
+				id = RawParseUtils.decode(buffer, position, position + length
+						- 1);
+				position += length;
+				continue;
+			}
+			if (type != TYPE_BINARY)
+				return null;
+
+			int next = position + 1 + length;
+			if (buffer[position++] == SUBTYPE_OLD_BINARY) {
+				length = readInt(buffer, position);
+				position += 4;
+			}
+			if (isName(buffer, nameOffset, nameLength, DATA_NAME)) {
+				dataOffset = position;
+				dataLength = length;
+			} else if (isName(buffer, nameOffset, nameLength, INDEX_NAME)) {
+				indexOffset = position;
+				indexLength = length;
+			} else if (isName(buffer, nameOffset, nameLength, META_NAME)) {
+				metaOffset = position;
+				metaLength = length;
+			} else if (isName(buffer, nameOffset, nameLength, ID_NAME)) {
+				byte[] key = new byte[length];
+				System.arraycopy(buffer, position, key, 0, length);
+				id = key;
+			} else
+				return null;
+			position = next;
+		}
+		if (id == null)
+			return null;
+
+		ChunkDocument document = new ChunkDocument(buffer, id);
+		if (dataOffset != -1)
+			document.setData(dataOffset, dataLength);
+		if (indexOffset != -1)
+			document.setIndex(indexOffset, indexLength);
+		if (metaOffset != -1)
+			document.setMeta(metaOffset, metaLength);
+		return document;
+	}
+}
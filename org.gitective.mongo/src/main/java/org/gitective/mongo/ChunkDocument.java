@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2011 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.gitective.mongo;
+
+import static org.gitective.mongo.IPropertyConstants.ID;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.mongodb.BasicDBObject;
+
+import org.eclipse.jgit.generated.storage.dht.proto.GitStore.ChunkMeta;
+import org.eclipse.jgit.storage.dht.ChunkKey;
+import org.eclipse.jgit.storage.dht.PackChunk.Members;
+
+/**
+ * Chunk document decoded by {@link ChunkDecoder}
+ * <p>
+ * Only the id is stored as a field of this object, the data, index, and meta
+ * fields are kept as ranges of the encoded document and are only available
+ * through the accessors of this class.
+ */
+public class ChunkDocument extends BasicDBObject {
+
+	/** serialVersionUID */
+	private static final long serialVersionUID = -2839616393781302164L;
+
+	private final byte[] buffer;
+
+	private int dataOffset = -1;
+
+	private int dataLength;
+
+	private int indexOffset = -1;
+
+	private int indexLength;
+
+	private int metaOffset = -1;
+
+	private int metaLength;
+
+	/**
+	 * Create document backed by encoded buffer
+	 * 
+	 * @param buffer
+	 * @param id
+	 */
+	public ChunkDocument(byte[] buffer, Object id) {
+		super(ID, id);
+		this.buffer = buffer;
+	}
+
+	/**
+	 * Set range of chunk data
+	 * 
+	 * @param offset
+	 * @param length
+	 * @return this document
+	 */
+	public ChunkDocument setData(int offset, int length) {
+		dataOffset = offset;
+		dataLength = length;
+		return this;
+	}
+
+	/**
+	 * Set range of chunk index
+	 * 
+	 * @param offset
+	 * @param length
+	 * @return this document
+	 */
+	public ChunkDocument setIndex(int offset, int length) {
+		indexOffset = offset;
+		indexLength = length;
+		return this;
+	}
+
+	/**
+	 * Set range of chunk meta
+	 * 
+	 * @param offset
+	 * @param length
+	 * @return this document
+	 */
+	public ChunkDocument setMeta(int offset, int length) {
+		metaOffset = offset;
+		metaLength = length;
+		return this;
+	}
+
+	/**
+	 * Get key of chunk
+	 * 
+	 * @return key string
+	 */
+	public String getKey() {
+		return MongoUtils.getKey(this, ID);
+	}
+
+	/**
+	 * Parse chunk meta
+	 * 
+	 * @return meta or null if document has no meta
+	 * @throws InvalidProtocolBufferException
+	 */
+	public ChunkMeta getChunkMeta() throws InvalidProtocolBufferException {
+		if (metaOffset == -1)
+			return null;
+		return ChunkMeta.newBuilder()
+				.mergeFrom(buffer, metaOffset, metaLength).build();
+	}
+
+	/**
+	 * Create members referencing the ranges of the encoded document
+	 * 
+	 * @param chunk
+	 * @return members or null if document has no chunk data
+	 * @throws InvalidProtocolBufferException
+	 */
+	public Members createMembers(ChunkKey chunk)
+			throws InvalidProtocolBufferException {
+		if (dataOffset == -1)
+			return null;
+
+		Members members = new ChunkMembers();
+		members.setChunkKey(chunk);
+		members.setChunkData(buffer, dataOffset, dataLength);
+		if (indexOffset != -1)
+			members.setChunkIndex(buffer, indexOffset, indexLength);
+		if (metaOffset != -1)
+			members.setMeta(getChunkMeta());
+		return members;
+	}
+}
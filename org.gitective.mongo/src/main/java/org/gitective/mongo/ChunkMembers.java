@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2011 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.gitective.mongo;
+
+import java.nio.ByteBuffer;
+
+import org.eclipse.jgit.storage.dht.PackChunk.Members;
+
+/**
+ * Chunk members that keep the ranges their data and index were set from
+ * <p>
+ * {@link Members} copies data and index set as a range of a larger buffer
+ * when they are read, these members allow the caches to measure and write
+ * them without that copy.
+ */
+class ChunkMembers extends Members {
+
+	private byte[] dataBuffer;
+
+	private int dataOffset;
+
+	private int dataLength;
+
+	private byte[] indexBuffer;
+
+	private int indexOffset;
+
+	private int indexLength;
+
+	public Members setChunkData(byte[] chunkData) {
+		return setChunkData(chunkData, 0, chunkData.length);
+	}
+
+	public Members setChunkData(byte[] chunkData, int offset, int length) {
+		dataBuffer = chunkData;
+		dataOffset = offset;
+		dataLength = length;
+		return super.setChunkData(chunkData, offset, length);
+	}
+
+	public Members setChunkIndex(byte[] chunkIndex) {
+		return setChunkIndex(chunkIndex, 0, chunkIndex.length);
+	}
+
+	public Members setChunkIndex(byte[] chunkIndex, int offset, int length) {
+		indexBuffer = chunkIndex;
+		indexOffset = offset;
+		indexLength = length;
+		return super.setChunkIndex(chunkIndex, offset, length);
+	}
+
+	/**
+	 * Get length of the chunk data of members
+	 * 
+	 * @param members
+	 * @return length, 0 if members have no data
+	 */
+	static int getDataLength(Members members) {
+		if (members instanceof ChunkMembers)
+			return ((ChunkMembers) members).dataLength;
+		return members.hasChunkData() ? members.getChunkData().length : 0;
+	}
+
+	/**
+	 * Get length of the chunk index of members
+	 * 
+	 * @param members
+	 * @return length, 0 if members have no index
+	 */
+	static int getIndexLength(Members members) {
+		if (members instanceof ChunkMembers)
+			return ((ChunkMembers) members).indexLength;
+		return members.hasChunkIndex() ? members.getChunkIndex().length : 0;
+	}
+
+	/**
+	 * Write chunk data of members to buffer
+	 * 
+	 * @param members
+	 * @param out
+	 */
+	static void putData(Members members, ByteBuffer out) {
+		if (members instanceof ChunkMembers) {
+			ChunkMembers chunk = (ChunkMembers) members;
+			if (chunk.dataBuffer != null)
+				out.put(chunk.dataBuffer, chunk.dataOffset, chunk.dataLength);
+		} else if (members.hasChunkData())
+			out.put(members.getChunkData());
+	}
+
+	/**
+	 * Write chunk index of members to buffer
+	 * 
+	 * @param members
+	 * @param out
+	 */
+	static void putIndex(Members members, ByteBuffer out) {
+		if (members instanceof ChunkMembers) {
+			ChunkMembers chunk = (ChunkMembers) members;
+			if (chunk.indexBuffer != null)
+				out.put(chunk.indexBuffer, chunk.indexOffset,
+						chunk.indexLength);
+		} else if (members.hasChunkIndex())
+			out.put(members.getChunkIndex());
+	}
+}
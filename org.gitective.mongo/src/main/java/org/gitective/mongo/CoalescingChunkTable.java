@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2011 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.gitective.mongo;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.eclipse.jgit.generated.storage.dht.proto.GitStore.ChunkMeta;
+import org.eclipse.jgit.storage.dht.AsyncCallback;
+import org.eclipse.jgit.storage.dht.ChunkKey;
+import org.eclipse.jgit.storage.dht.DhtException;
+import org.eclipse.jgit.storage.dht.PackChunk.Members;
+import org.eclipse.jgit.storage.dht.spi.ChunkTable;
+import org.eclipse.jgit.storage.dht.spi.Context;
+import org.eclipse.jgit.storage.dht.spi.WriteBuffer;
+
+/**
+ * Chunk table that combines concurrent lookups into single lookups of a
+ * delegate chunk table
+ * <p>
+ * Lookups are collected for a short window and sent together once the window
+ * elapses or the collected keys reach the limit. Writes are passed to the
+ * delegate on the calling thread.
+ */
+public class CoalescingChunkTable implements ChunkTable {
+
+	/**
+	 * Default microseconds to wait for other lookups
+	 */
+	public static final long DEFAULT_WINDOW = 1000;
+
+	private final ChunkTable delegate;
+
+	private final LookupCoalescer<ChunkKey, Collection<Members>> chunks;
+
+	private final LookupCoalescer<ChunkKey, Map<ChunkKey, ChunkMeta>> meta;
+
+	/**
+	 * Create table with default window and limit
+	 * 
+	 * @param delegate
+	 * @param executor
+	 */
+	public CoalescingChunkTable(ChunkTable delegate,
+			ScheduledExecutorService executor) {
+		this(delegate, executor, DEFAULT_WINDOW,
+				MongoChunkTable.DEFAULT_BATCH_SIZE);
+	}
+
+	/**
+	 * @param delegate
+	 * @param executor
+	 *            executor lookups are sent from
+	 * @param window
+	 *            microseconds to wait for other lookups
+	 * @param limit
+	 *            maximum number of keys in a single lookup
+	 */
+	public CoalescingChunkTable(final ChunkTable delegate,
+			ScheduledExecutorService executor, long window, int limit) {
+		this.delegate = delegate;
+		chunks = new LookupCoalescer<ChunkKey, Collection<Members>>(executor,
+				window, limit) {
+
+			protected void lookup(Context options, Set<ChunkKey> keys,
+					AsyncCallback<Collection<Members>> callback) {
+				delegate.get(options, keys, callback);
+			}
+
+			protected Collection<Members> select(Collection<Members> result,
+					Set<ChunkKey> keys) {
+				List<Members> selected = new ArrayList<Members>(keys.size());
+				for (Members members : result)
+					if (keys.contains(members.getChunkKey()))
+						selected.add(members);
+				return selected;
+			}
+		};
+		meta = new LookupCoalescer<ChunkKey, Map<ChunkKey, ChunkMeta>>(
+				executor, window, limit) {
+
+			protected void lookup(Context options, Set<ChunkKey> keys,
+					AsyncCallback<Map<ChunkKey, ChunkMeta>> callback) {
+				delegate.getMeta(options, keys, callback);
+			}
+
+			protected Map<ChunkKey, ChunkMeta> select(
+					Map<ChunkKey, ChunkMeta> result, Set<ChunkKey> keys) {
+				Map<ChunkKey, ChunkMeta> selected = new HashMap<ChunkKey, ChunkMeta>();
+				for (ChunkKey key : keys) {
+					ChunkMeta value = result.get(key);
+					if (value != null)
+						selected.put(key, value);
+				}
+				return selected;
+			}
+		};
+	}
+
+	public void get(Context options, Set<ChunkKey> keys,
+			AsyncCallback<Collection<Members>> callback) {
+		chunks.get(options, keys, callback);
+	}
+
+	public void getMeta(Context options, Set<ChunkKey> keys,
+			AsyncCallback<Map<ChunkKey, ChunkMeta>> callback) {
+		meta.get(options, keys, callback);
+	}
+
+	public void put(Members chunk, WriteBuffer buffer) throws DhtException {
+		delegate.put(chunk, buffer);
+	}
+
+	public void remove(ChunkKey key, WriteBuffer buffer) throws DhtException {
+		delegate.remove(key, buffer);
+	}
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2011 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.gitective.mongo;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.eclipse.jgit.storage.dht.AsyncCallback;
+import org.eclipse.jgit.storage.dht.ChunkKey;
+import org.eclipse.jgit.storage.dht.DhtException;
+import org.eclipse.jgit.storage.dht.ObjectIndexKey;
+import org.eclipse.jgit.storage.dht.ObjectInfo;
+import org.eclipse.jgit.storage.dht.spi.Context;
+import org.eclipse.jgit.storage.dht.spi.ObjectIndexTable;
+import org.eclipse.jgit.storage.dht.spi.WriteBuffer;
+
+/**
+ * Object index table that combines concurrent lookups into single lookups of
+ * a delegate object index table
+ * <p>
+ * Lookups are collected for a short window and sent together once the window
+ * elapses or the collected keys reach the limit. Writes are passed to the
+ * delegate on the calling thread.
+ */
+public class CoalescingObjectIndexTable implements ObjectIndexTable {
+
+	private final ObjectIndexTable delegate;
+
+	private final LookupCoalescer<ObjectIndexKey, Map<ObjectIndexKey, Collection<ObjectInfo>>> objects;
+
+	/**
+	 * Create table with default window and limit
+	 * 
+	 * @param delegate
+	 * @param executor
+	 */
+	public CoalescingObjectIndexTable(ObjectIndexTable delegate,
+			ScheduledExecutorService executor) {
+		this(delegate, executor, CoalescingChunkTable.DEFAULT_WINDOW,
+				MongoObjectIndexTable.DEFAULT_BATCH_SIZE);
+	}
+
+	/**
+	 * @param delegate
+	 * @param executor
+	 *            executor lookups are sent from
+	 * @param window
+	 *            microseconds to wait for other lookups
+	 * @param limit
+	 *            maximum number of keys in a single lookup
+	 */
+	public CoalescingObjectIndexTable(final ObjectIndexTable delegate,
+			ScheduledExecutorService executor, long window, int limit) {
+		this.delegate = delegate;
+		objects = new LookupCoalescer<ObjectIndexKey, Map<ObjectIndexKey, Collection<ObjectInfo>>>(
+				executor, window, limit) {
+
+			protected void lookup(
+					Context options,
+					Set<ObjectIndexKey> keys,
+					AsyncCallback<Map<ObjectIndexKey, Collection<ObjectInfo>>> callback) {
+				delegate.get(options, keys, callback);
+			}
+
+			protected Map<ObjectIndexKey, Collection<ObjectInfo>> select(
+					Map<ObjectIndexKey, Collection<ObjectInfo>> result,
+					Set<ObjectIndexKey> keys) {
+				Map<ObjectIndexKey, Collection<ObjectInfo>> selected = new HashMap<ObjectIndexKey, Collection<ObjectInfo>>();
+				for (ObjectIndexKey key : keys) {
+					Collection<ObjectInfo> value = result.get(key);
+					if (value != null)
+						selected.put(key, value);
+				}
+				return selected;
+			}
+		};
+	}
+
+	public void get(Context options, Set<ObjectIndexKey> keys,
+			AsyncCallback<Map<ObjectIndexKey, Collection<ObjectInfo>>> callback) {
+		objects.get(options, keys, callback);
+	}
+
+	public void add(ObjectIndexKey objId, ObjectInfo info, WriteBuffer buffer)
+			throws DhtException {
+		delegate.add(objId, info, buffer);
+	}
+
+	public void remove(ObjectIndexKey objId, ChunkKey chunk, WriteBuffer buffer)
+			throws DhtException {
+		delegate.remove(objId, chunk, buffer);
+	}
+}
@@ -0,0 +1,439 @@
+/*
+ * Copyright (c) 2011 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.gitective.mongo;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.eclipse.jgit.generated.storage.dht.proto.GitStore.ChunkMeta;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.storage.dht.ChunkKey;
+import org.eclipse.jgit.storage.dht.PackChunk.Members;
+import org.eclipse.jgit.util.RawParseUtils;
+
+/**
+ * Chunk cache stored in memory-mapped slab files in a local directory
+ * <p>
+ * Chunks are appended to the current slab and, once every slab is full, the
+ * oldest slab is recycled and all the chunks it contains are evicted. Slabs
+ * are scanned when the cache is opened so cached chunks survive restarts.
+ * <p>
+ * Only the key to location map is kept on the heap, chunk bytes stay in the
+ * page cache until they are copied into {@link Members} on a hit.
+ */
+public class DiskChunkCache {
+
+	/**
+	 * Default size of each slab file
+	 */
+	public static final int DEFAULT_SLAB_SIZE = 64 * 1024 * 1024;
+
+	private static final String SLAB_PREFIX = "chunks-";
+
+	private static final String SLAB_SUFFIX = ".slab";
+
+	private static final int RECORD_MAGIC = 0x4A474D43;
+
+	/**
+	 * Magic of records of removed chunks, skipped when loading
+	 */
+	private static final int REMOVED_MAGIC = 0x4A474D52;
+
+	/**
+	 * Slab generation
+	 */
+	private static final int SLAB_HEADER = 8;
+
+	/**
+	 * Magic, key length, data length, index length, and meta length
+	 */
+	private static final int RECORD_HEADER = 20;
+
+	private static class Slab {
+
+		final int id;
+
+		final MappedByteBuffer buffer;
+
+		final List<ChunkKey> keys = new ArrayList<ChunkKey>();
+
+		long generation;
+
+		int position = SLAB_HEADER;
+
+		Slab(int id, MappedByteBuffer buffer) {
+			this.id = id;
+			this.buffer = buffer;
+		}
+	}
+
+	private final Slab[] slabs;
+
+	private final int slabSize;
+
+	private final Map<ChunkKey, Long> locations = new ConcurrentHashMap<ChunkKey, Long>();
+
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	private final AtomicLong evictions = new AtomicLong();
+
+	private Slab current;
+
+	/**
+	 * Open cache in directory using slabs of the default size
+	 * 
+	 * @param directory
+	 * @param slabCount
+	 * @throws IOException
+	 */
+	public DiskChunkCache(File directory, int slabCount) throws IOException {
+		this(directory, DEFAULT_SLAB_SIZE, slabCount);
+	}
+
+	/**
+	 * Open cache in directory, loading chunks already present in its slabs
+	 * 
+	 * @param directory
+	 * @param slabSize
+	 * @param slabCount
+	 * @throws IOException
+	 */
+	public DiskChunkCache(File directory, int slabSize, int slabCount)
+			throws IOException {
+		if (slabSize <= SLAB_HEADER + RECORD_HEADER)
+			throw new IllegalArgumentException("Slab size too small");
+		if (slabCount < 1)
+			throw new IllegalArgumentException("Slab count must be positive");
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Unable to create directory " + directory);
+		this.slabSize = slabSize;
+		slabs = new Slab[slabCount];
+		for (int i = 0; i < slabCount; i++)
+			slabs[i] = open(new File(directory, SLAB_PREFIX + i + SLAB_SUFFIX),
+					i);
+		load();
+	}
+
+	private Slab open(File file, int id) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			if (raf.length() != slabSize)
+				raf.setLength(slabSize);
+			FileChannel channel = raf.getChannel();
+			return new Slab(id, channel.map(MapMode.READ_WRITE, 0, slabSize));
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static long location(Slab slab, int offset) {
+		return ((long) slab.id << 32) | offset;
+	}
+
+	/**
+	 * Get length of the record at the position
+	 * 
+	 * @param buffer
+	 * @param position
+	 * @return length of the record including its header, or -1 if any of its
+	 *         lengths is negative or the record extends past the slab
+	 */
+	private int getRecordLength(ByteBuffer buffer, int position) {
+		long length = RECORD_HEADER;
+		for (int offset = 4; offset < RECORD_HEADER; offset += 4) {
+			int part = buffer.getInt(position + offset);
+			if (part < 0)
+				return -1;
+			length += part;
+		}
+		if (position + length > slabSize)
+			return -1;
+		return (int) length;
+	}
+
+	private void load() {
+		Slab[] ordered = slabs.clone();
+		for (Slab slab : ordered)
+			slab.generation = slab.buffer.getLong(0);
+		Arrays.sort(ordered, new Comparator<Slab>() {
+
+			public int compare(Slab s1, Slab s2) {
+				return s1.generation < s2.generation ? -1
+						: s1.generation == s2.generation ? 0 : 1;
+			}
+		});
+		for (Slab slab : ordered) {
+			ByteBuffer buffer = slab.buffer.duplicate();
+			int position = SLAB_HEADER;
+			while (position + RECORD_HEADER <= slabSize) {
+				int magic = buffer.getInt(position);
+				if (magic != RECORD_MAGIC && magic != REMOVED_MAGIC)
+					break;
+				int length = getRecordLength(buffer, position);
+				if (length < 0)
+					break;
+				int keyLength = buffer.getInt(position + 4);
+				if (magic == REMOVED_MAGIC) {
+					position += length;
+					continue;
+				}
+				byte[] key = new byte[keyLength];
+				buffer.position(position + RECORD_HEADER);
+				buffer.get(key);
+				ChunkKey chunk = ChunkKey.fromString(RawParseUtils.decode(key));
+				slab.keys.add(chunk);
+				locations.put(chunk, Long.valueOf(location(slab, position)));
+				position += length;
+			}
+			slab.position = position;
+		}
+		current = ordered[ordered.length - 1];
+		if (current.generation == 0)
+			recycle(current, 1);
+	}
+
+	private void recycle(Slab slab, long generation) {
+		for (ChunkKey key : slab.keys) {
+			Long location = locations.get(key);
+			if (location != null && (int) (location.longValue() >>> 32) == slab.id
+					&& locations.remove(key) != null)
+				evictions.incrementAndGet();
+		}
+		slab.keys.clear();
+		slab.generation = generation;
+		slab.buffer.putLong(0, generation);
+		slab.buffer.putInt(SLAB_HEADER, 0);
+		slab.position = SLAB_HEADER;
+	}
+
+	/**
+	 * Get cached chunk
+	 * 
+	 * @param key
+	 * @return members or null if not cached
+	 */
+	public Members get(ChunkKey key) {
+		lock.readLock().lock();
+		try {
+			// Looked up under the lock so the slab is not recycled meanwhile
+			Long location = locations.get(key);
+			Members members = location != null ? read(key,
+					location.longValue()) : null;
+			if (members != null)
+				hits.incrementAndGet();
+			else
+				misses.incrementAndGet();
+			return members;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private Members read(ChunkKey key, long location) {
+		Slab slab = slabs[(int) (location >>> 32)];
+		int position = (int) location;
+		ByteBuffer buffer = slab.buffer.duplicate();
+		if (buffer.getInt(position) != RECORD_MAGIC
+				|| getRecordLength(buffer, position) < 0)
+			return null;
+		byte[] expected = Constants.encode(key.asString());
+		if (buffer.getInt(position + 4) != expected.length)
+			return null;
+		int dataLength = buffer.getInt(position + 8);
+		int indexLength = buffer.getInt(position + 12);
+		int metaLength = buffer.getInt(position + 16);
+
+		buffer.position(position + RECORD_HEADER);
+		byte[] stored = new byte[expected.length];
+		buffer.get(stored);
+		if (!Arrays.equals(expected, stored))
+			return null;
+
+		Members members = new Members();
+		members.setChunkKey(key);
+		byte[] data = new byte[dataLength];
+		buffer.get(data);
+		members.setChunkData(data);
+		if (indexLength > 0) {
+			byte[] index = new byte[indexLength];
+			buffer.get(index);
+			members.setChunkIndex(index);
+		}
+		if (metaLength > 0) {
+			byte[] meta = new byte[metaLength];
+			buffer.get(meta);
+			try {
+				members.setMeta(ChunkMeta.parseFrom(meta));
+			} catch (InvalidProtocolBufferException e) {
+				return null;
+			}
+		}
+		return members;
+	}
+
+	/**
+	 * Cache chunk
+	 * <p>
+	 * Chunks without data or too large to fit in a single slab are ignored
+	 * 
+	 * @param members
+	 */
+	public void put(Members members) {
+		if (!members.hasChunkData())
+			return;
+		ChunkKey key = members.getChunkKey();
+		byte[] name = Constants.encode(key.asString());
+		int dataLength = ChunkMembers.getDataLength(members);
+		int indexLength = ChunkMembers.getIndexLength(members);
+		byte[] meta = members.hasMeta() ? members.getMeta().toByteArray()
+				: null;
+		int length = RECORD_HEADER + name.length + dataLength + indexLength
+				+ (meta != null ? meta.length : 0);
+		if (length > slabSize - SLAB_HEADER)
+			return;
+
+		lock.writeLock().lock();
+		try {
+			if (locations.containsKey(key))
+				return;
+			if (current.position + length > slabSize) {
+				Slab next = slabs[(current.id + 1) % slabs.length];
+				recycle(next, current.generation + 1);
+				current = next;
+			}
+			ByteBuffer buffer = current.buffer.duplicate();
+			int position = current.position;
+			buffer.position(position);
+			buffer.putInt(0);
+			buffer.putInt(name.length);
+			buffer.putInt(dataLength);
+			buffer.putInt(indexLength);
+			buffer.putInt(meta != null ? meta.length : 0);
+			buffer.put(name);
+			ChunkMembers.putData(members, buffer);
+			ChunkMembers.putIndex(members, buffer);
+			if (meta != null)
+				buffer.put(meta);
+			if (buffer.remaining() >= 4)
+				buffer.putInt(0);
+			buffer.putInt(position, RECORD_MAGIC);
+			current.position = position + length;
+			current.keys.add(key);
+			locations.put(key, Long.valueOf(location(current, position)));
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Remove chunk from cache
+	 * <p>
+	 * The record of the chunk is marked as removed so it is not loaded again
+	 * when the cache is reopened
+	 * 
+	 * @param key
+	 */
+	public void remove(ChunkKey key) {
+		lock.writeLock().lock();
+		try {
+			Long location = locations.remove(key);
+			if (location == null)
+				return;
+			Slab slab = slabs[(int) (location.longValue() >>> 32)];
+			int position = (int) location.longValue();
+			if (slab.buffer.getInt(position) == RECORD_MAGIC)
+				slab.buffer.putInt(position, REMOVED_MAGIC);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Get keys of all cached chunks
+	 * 
+	 * @return keys
+	 */
+	public Collection<ChunkKey> getKeys() {
+		return new ArrayList<ChunkKey>(locations.keySet());
+	}
+
+	/**
+	 * Write modified slab pages to disk
+	 */
+	public void force() {
+		lock.writeLock().lock();
+		try {
+			for (Slab slab : slabs)
+				slab.buffer.force();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Get number of lookups answered from the cache
+	 * 
+	 * @return hit count
+	 */
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	/**
+	 * Get number of lookups not answered from the cache
+	 * 
+	 * @return miss count
+	 */
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/**
+	 * Get number of chunks evicted when slabs were recycled
+	 * 
+	 * @return eviction count
+	 */
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+}
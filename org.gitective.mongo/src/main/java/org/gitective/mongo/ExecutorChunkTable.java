@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2011 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.gitective.mongo;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+import org.eclipse.jgit.generated.storage.dht.proto.GitStore.ChunkMeta;
+import org.eclipse.jgit.storage.dht.AsyncCallback;
+import org.eclipse.jgit.storage.dht.ChunkKey;
+import org.eclipse.jgit.storage.dht.DhtException;
+import org.eclipse.jgit.storage.dht.PackChunk.Members;
+import org.eclipse.jgit.storage.dht.spi.ChunkTable;
+import org.eclipse.jgit.storage.dht.spi.Context;
+import org.eclipse.jgit.storage.dht.spi.WriteBuffer;
+
+/**
+ * Chunk table that runs lookups of a delegate chunk table on an executor
+ * <p>
+ * Lookups return immediately and are split into batches of which a limited
+ * number run at the same time. Writes are passed to the delegate on the
+ * calling thread.
+ */
+public class ExecutorChunkTable implements ChunkTable {
+
+	/**
+	 * Default maximum number of batches of a single lookup running at the
+	 * same time
+	 */
+	public static final int DEFAULT_PARALLELISM = 4;
+
+	private final ChunkTable delegate;
+
+	private final Executor executor;
+
+	private int batchSize = MongoChunkTable.DEFAULT_BATCH_SIZE;
+
+	private int parallelism = DEFAULT_PARALLELISM;
+
+	/**
+	 * @param delegate
+	 * @param executor
+	 */
+	public ExecutorChunkTable(ChunkTable delegate, Executor executor) {
+		this.delegate = delegate;
+		this.executor = executor;
+	}
+
+	/**
+	 * Set maximum number of keys in a single batch
+	 * 
+	 * @param batchSize
+	 * @return this table
+	 */
+	public ExecutorChunkTable setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+		return this;
+	}
+
+	/**
+	 * Set maximum number of batches of a single lookup running at the same
+	 * time
+	 * 
+	 * @param parallelism
+	 * @return this table
+	 */
+	public ExecutorChunkTable setParallelism(int parallelism) {
+		this.parallelism = parallelism;
+		return this;
+	}
+
+	public void get(final Context options, Set<ChunkKey> keys,
+			AsyncCallback<Collection<Members>> callback) {
+		new ParallelLookup<ChunkKey, Collection<Members>>(executor, keys,
+				batchSize, callback) {
+
+			protected Collection<Members> createResult() {
+				return new ArrayList<Members>();
+			}
+
+			protected void addResult(Collection<Members> result,
+					Collection<Members> partial) {
+				result.addAll(partial);
+			}
+
+			protected void lookup(Set<ChunkKey> batch,
+					AsyncCallback<Collection<Members>> batchCallback) {
+				delegate.get(options, batch, batchCallback);
+			}
+		}.start(parallelism);
+	}
+
+	public void getMeta(final Context options, Set<ChunkKey> keys,
+			AsyncCallback<Map<ChunkKey, ChunkMeta>> callback) {
+		new ParallelLookup<ChunkKey, Map<ChunkKey, ChunkMeta>>(executor, keys,
+				batchSize, callback) {
+
+			protected Map<ChunkKey, ChunkMeta> createResult() {
+				return new HashMap<ChunkKey, ChunkMeta>();
+			}
+
+			protected void addResult(Map<ChunkKey, ChunkMeta> result,
+					Map<ChunkKey, ChunkMeta> partial) {
+				result.putAll(partial);
+			}
+
+			protected void lookup(Set<ChunkKey> batch,
+					AsyncCallback<Map<ChunkKey, ChunkMeta>> batchCallback) {
+				delegate.getMeta(options, batch, batchCallback);
+			}
+		}.start(parallelism);
+	}
+
+	public void put(Members chunk, WriteBuffer buffer) throws DhtException {
+		delegate.put(chunk, buffer);
+	}
+
+	public void remove(ChunkKey key, WriteBuffer buffer) throws DhtException {
+		delegate.remove(key, buffer);
+	}
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2011 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.gitective.mongo;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+import org.eclipse.jgit.storage.dht.AsyncCallback;
+import org.eclipse.jgit.storage.dht.ChunkKey;
+import org.eclipse.jgit.storage.dht.DhtException;
+import org.eclipse.jgit.storage.dht.ObjectIndexKey;
+import org.eclipse.jgit.storage.dht.ObjectInfo;
+import org.eclipse.jgit.storage.dht.spi.Context;
+import org.eclipse.jgit.storage.dht.spi.ObjectIndexTable;
+import org.eclipse.jgit.storage.dht.spi.WriteBuffer;
+
+/**
+ * Object index table that runs lookups of a delegate object index table on
+ * an executor
+ * <p>
+ * Lookups return immediately and are split into batches of which a limited
+ * number run at the same time. Writes are passed to the delegate on the
+ * calling thread.
+ */
+public class ExecutorObjectIndexTable implements ObjectIndexTable {
+
+	private final ObjectIndexTable delegate;
+
+	private final Executor executor;
+
+	private int batchSize = MongoObjectIndexTable.DEFAULT_BATCH_SIZE;
+
+	private int parallelism = ExecutorChunkTable.DEFAULT_PARALLELISM;
+
+	/**
+	 * @param delegate
+	 * @param executor
+	 */
+	public ExecutorObjectIndexTable(ObjectIndexTable delegate,
+			Executor executor) {
+		this.delegate = delegate;
+		this.executor = executor;
+	}
+
+	/**
+	 * Set maximum number of keys in a single batch
+	 * 
+	 * @param batchSize
+	 * @return this table
+	 */
+	public ExecutorObjectIndexTable setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+		return this;
+	}
+
+	/**
+	 * Set maximum number of batches of a single lookup running at the same
+	 * time
+	 * 
+	 * @param parallelism
+	 * @return this table
+	 */
+	public ExecutorObjectIndexTable setParallelism(int parallelism) {
+		this.parallelism = parallelism;
+		return this;
+	}
+
+	public void get(final Context options, Set<ObjectIndexKey> objects,
+			AsyncCallback<Map<ObjectIndexKey, Collection<ObjectInfo>>> callback) {
+		new ParallelLookup<ObjectIndexKey, Map<ObjectIndexKey, Collection<ObjectInfo>>>(
+				executor, objects, batchSize, callback) {
+
+			protected Map<ObjectIndexKey, Collection<ObjectInfo>> createResult() {
+				return new HashMap<ObjectIndexKey, Collection<ObjectInfo>>();
+			}
+
+			protected void addResult(
+					Map<ObjectIndexKey, Collection<ObjectInfo>> result,
+					Map<ObjectIndexKey, Collection<ObjectInfo>> partial) {
+				result.putAll(partial);
+			}
+
+			protected void lookup(
+					Set<ObjectIndexKey> batch,
+					AsyncCallback<Map<ObjectIndexKey, Collection<ObjectInfo>>> batchCallback) {
+				delegate.get(options, batch, batchCallback);
+			}
+		}.start(parallelism);
+	}
+
+	public void add(ObjectIndexKey objId, ObjectInfo info, WriteBuffer buffer)
+			throws DhtException {
+		delegate.add(objId, info, buffer);
+	}
+
+	public void remove(ObjectIndexKey objId, ChunkKey chunk, WriteBuffer buffer)
+			throws DhtException {
+		delegate.remove(objId, chunk, buffer);
+	}
+}
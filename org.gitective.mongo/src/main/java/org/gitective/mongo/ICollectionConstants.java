@@ -29,9 +29,18 @@ public interface ICollectionConstants {
 	/** CHUNKS */
 	String CHUNKS = "chunks";
 
+	/** CHUNK_META */
+	String CHUNK_META = "chunkMeta";
+
 	/** OBJECTS */
 	String OBJECTS = "objects";
 
+	/** PACKED_REFS */
+	String PACKED_REFS = "packedRefs";
+
+	/** REF_UPDATES */
+	String REF_UPDATES = "refUpdates";
+
 	/** REFS */
 	String REFS = "refs";
 
@@ -32,12 +32,18 @@ public interface IPropertyConstants {
 	/** CHUNKS */
 	String CHUNKS = "chunks";
 
+	/** CHUNK */
+	String CHUNK = "chunk";
+
 	/** DATA */
 	String DATA = "data";
 
 	/** INDEX */
 	String INDEX = "index";
 
+	/** INFO */
+	String INFO = "info";
+
 	/** KEY */
 	String KEY = "key";
 
@@ -53,9 +59,15 @@ public interface IPropertyConstants {
 	/** PACKS */
 	String PACKS = "packs";
 
+	/** REFS */
+	String REFS = "refs";
+
 	/** REPO */
 	String REPO = "repo";
 
+	/** SHARDS */
+	String SHARDS = "shards";
+
 	/** VALUES */
 	String VALUES = "values";
 }
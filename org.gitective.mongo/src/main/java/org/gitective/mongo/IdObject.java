@@ -45,9 +45,9 @@ public class IdObject extends BasicDBObject {
 	/**
 	 * Get id
 	 * 
-	 * @return id value
+	 * @return id value, decoded to a string if stored as a binary key
 	 */
 	public String getId() {
-		return getString(ID);
+		return KeyCodec.decode(get(ID));
 	}
 }
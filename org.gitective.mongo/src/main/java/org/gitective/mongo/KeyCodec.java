@@ -0,0 +1,293 @@
+/*
+ * Copyright (c) 2011 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.gitective.mongo;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+import org.eclipse.jgit.storage.dht.ChunkKey;
+import org.eclipse.jgit.storage.dht.ObjectIndexKey;
+
+/**
+ * Codec of chunk and object index keys stored as document ids
+ * <p>
+ * Keys are of the form of 8 hex digits of the repository, a '.', and the 40
+ * hex digits of the object id. The {@link #STRING} codec stores keys as is
+ * and the {@link #BINARY} codec stores them as 24 bytes of binary data. The
+ * {@link #SHARDED} codec prefixes the binary key with a bucket hashed from
+ * the repository so that ids of sequentially created repositories are spread
+ * across the key space of a collection sharded on the document id while the
+ * keys of each repository stay contiguous. Keys of all forms are always
+ * decoded so documents written with any codec can be read.
+ */
+public abstract class KeyCodec {
+
+	/**
+	 * Length of binary encoded keys
+	 */
+	public static final int BINARY_LENGTH = 24;
+
+	/**
+	 * Length of the bucket prefixing sharded keys
+	 */
+	public static final int BUCKET_LENGTH = 2;
+
+	/**
+	 * Length of sharded keys
+	 */
+	public static final int SHARDED_LENGTH = BUCKET_LENGTH + BINARY_LENGTH;
+
+	private static final int REPOSITORY_DIGITS = 8;
+
+	private static final int STRING_LENGTH = REPOSITORY_DIGITS + 1 + 40;
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	/**
+	 * Codec storing keys as strings
+	 */
+	public static final KeyCodec STRING = new KeyCodec() {
+
+		public Object encode(String key) {
+			return key;
+		}
+
+		public DBObject createRange(String repository) {
+			return createStringRange(repository);
+		}
+
+		public Object createSplitPoint(int prefix) {
+			char[] chars = new char[2 * BUCKET_LENGTH];
+			format(createPrefix(prefix, BUCKET_LENGTH), 0, BUCKET_LENGTH,
+					chars, 0);
+			return new String(chars);
+		}
+	};
+
+	/**
+	 * Codec storing keys as binary data
+	 */
+	public static final KeyCodec BINARY = new KeyCodec() {
+
+		public Object encode(String key) {
+			if (key.length() != STRING_LENGTH
+					|| key.charAt(REPOSITORY_DIGITS) != '.')
+				return key;
+			byte[] encoded = new byte[BINARY_LENGTH];
+			if (!parse(key, 0, REPOSITORY_DIGITS, encoded, 0)
+					|| !parse(key, REPOSITORY_DIGITS + 1, 40, encoded,
+							REPOSITORY_DIGITS / 2))
+				return key;
+			return encoded;
+		}
+
+		public DBObject createRange(String repository) {
+			byte[] lower = new byte[BINARY_LENGTH];
+			if (repository.length() < REPOSITORY_DIGITS
+					|| !parse(repository, 0, REPOSITORY_DIGITS, lower, 0))
+				return createStringRange(repository);
+			byte[] upper = new byte[BINARY_LENGTH];
+			System.arraycopy(lower, 0, upper, 0, REPOSITORY_DIGITS / 2);
+			for (int i = REPOSITORY_DIGITS / 2; i < BINARY_LENGTH; i++)
+				upper[i] = (byte) 0xff;
+			return new BasicDBObject("$gte", lower).append("$lte", upper);
+		}
+
+		public Object createSplitPoint(int prefix) {
+			return createPrefix(prefix, BINARY_LENGTH);
+		}
+	};
+
+	/**
+	 * Codec storing keys as binary data prefixed by a bucket hashed from the
+	 * repository
+	 */
+	public static final KeyCodec SHARDED = new KeyCodec() {
+
+		public Object encode(String key) {
+			Object binary = BINARY.encode(key);
+			if (!(binary instanceof byte[]))
+				return key;
+			return addBucket((byte[]) binary);
+		}
+
+		public DBObject createRange(String repository) {
+			DBObject range = BINARY.createRange(repository);
+			Object lower = range.get("$gte");
+			Object upper = range.get("$lte");
+			if (!(lower instanceof byte[]) || !(upper instanceof byte[]))
+				return range;
+			return new BasicDBObject("$gte", addBucket((byte[]) lower))
+					.append("$lte", addBucket((byte[]) upper));
+		}
+
+		public Object createSplitPoint(int prefix) {
+			return createPrefix(prefix, SHARDED_LENGTH);
+		}
+	};
+
+	/**
+	 * Get bucket of repository
+	 * 
+	 * @param repository
+	 * @return bucket between 0 and 65535
+	 */
+	public static int getBucket(int repository) {
+		return (repository * 0x9E3779B1) >>> 16;
+	}
+
+	private static byte[] addBucket(byte[] binary) {
+		int repository = (binary[0] & 0xff) << 24 | (binary[1] & 0xff) << 16
+				| (binary[2] & 0xff) << 8 | (binary[3] & 0xff);
+		int bucket = getBucket(repository);
+		byte[] encoded = new byte[SHARDED_LENGTH];
+		encoded[0] = (byte) (bucket >>> 8);
+		encoded[1] = (byte) bucket;
+		System.arraycopy(binary, 0, encoded, BUCKET_LENGTH, BINARY_LENGTH);
+		return encoded;
+	}
+
+	private static byte[] createPrefix(int prefix, int length) {
+		byte[] key = new byte[length];
+		key[0] = (byte) (prefix >>> 8);
+		key[1] = (byte) prefix;
+		return key;
+	}
+
+	private static int digit(char c) {
+		if (c >= '0' && c <= '9')
+			return c - '0';
+		if (c >= 'a' && c <= 'f')
+			return c - 'a' + 10;
+		return -1;
+	}
+
+	private static boolean parse(String key, int offset, int length,
+			byte[] out, int outOffset) {
+		for (int i = 0; i < length; i += 2) {
+			int high = digit(key.charAt(offset + i));
+			int low = digit(key.charAt(offset + i + 1));
+			if (high == -1 || low == -1)
+				return false;
+			out[outOffset + i / 2] = (byte) (high << 4 | low);
+		}
+		return true;
+	}
+
+	private static void format(byte[] key, int offset, int length, char[] out,
+			int outOffset) {
+		for (int i = 0; i < length; i++) {
+			int value = key[offset + i] & 0xff;
+			out[outOffset + 2 * i] = HEX[value >>> 4];
+			out[outOffset + 2 * i + 1] = HEX[value & 0xf];
+		}
+	}
+
+	/**
+	 * Create id range of keys with string prefix
+	 * 
+	 * @param repository
+	 * @return range condition
+	 */
+	protected static DBObject createStringRange(String repository) {
+		int last = repository.length() - 1;
+		String end = repository.substring(0, last)
+				+ (char) (repository.charAt(last) + 1);
+		return new BasicDBObject("$gte", repository).append("$lt", end);
+	}
+
+	/**
+	 * Encode key string as document id
+	 * 
+	 * @param key
+	 * @return id value
+	 */
+	public abstract Object encode(String key);
+
+	/**
+	 * Create condition matching the ids of all keys in repository
+	 * 
+	 * @param repository
+	 *            key prefix including the trailing '.'
+	 * @return range condition
+	 */
+	public abstract DBObject createRange(String repository);
+
+	/**
+	 * Create lowest id of the keys starting with the given prefix
+	 * <p>
+	 * Split points partition the key space of a collection sharded on the
+	 * document id into ranges of about equal size for all codecs.
+	 * 
+	 * @param prefix
+	 *            leading 16 bits of the encoded key
+	 * @return id value
+	 */
+	public abstract Object createSplitPoint(int prefix);
+
+	/**
+	 * Encode chunk key as document id
+	 * 
+	 * @param key
+	 * @return id value
+	 */
+	public Object encode(ChunkKey key) {
+		return encode(key.asString());
+	}
+
+	/**
+	 * Encode object index key as document id
+	 * 
+	 * @param key
+	 * @return id value
+	 */
+	public Object encode(ObjectIndexKey key) {
+		return encode(key.asString());
+	}
+
+	/**
+	 * Decode document id written by any codec to key string
+	 * 
+	 * @param id
+	 * @return key string
+	 */
+	public static String decode(Object id) {
+		if (id instanceof byte[]) {
+			byte[] key = (byte[]) id;
+			int offset;
+			if (key.length == BINARY_LENGTH)
+				offset = 0;
+			else if (key.length == SHARDED_LENGTH)
+				offset = BUCKET_LENGTH;
+			else
+				throw new IllegalArgumentException("Invalid binary key length "
+						+ key.length);
+			char[] chars = new char[STRING_LENGTH];
+			format(key, offset, REPOSITORY_DIGITS / 2, chars, 0);
+			chars[REPOSITORY_DIGITS] = '.';
+			format(key, offset + REPOSITORY_DIGITS / 2, 20, chars,
+					REPOSITORY_DIGITS + 1);
+			return new String(chars);
+		}
+		return id != null ? id.toString() : null;
+	}
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) 2011 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.gitective.mongo;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.eclipse.jgit.storage.dht.AsyncCallback;
+import org.eclipse.jgit.storage.dht.DhtException;
+import org.eclipse.jgit.storage.dht.spi.Context;
+
+/**
+ * Combiner of concurrent lookups into a single lookup
+ * <p>
+ * Lookups with the same context are collected until the window after the
+ * first of them elapses or until the collected keys reach the limit. The
+ * union of their keys is then looked up once on the executor and each
+ * callback is passed the part of the result matching its keys. Lookups with
+ * more keys than the limit are not combined.
+ * 
+ * @param <K>
+ *            key type
+ * @param <T>
+ *            result type
+ */
+abstract class LookupCoalescer<K, T> {
+
+	private static final Logger LOG = Logger.getLogger(LookupCoalescer.class
+			.getName());
+
+	/**
+	 * Lookup waiting for its batch to be sent
+	 */
+	private class Request {
+
+		final Set<K> keys;
+
+		final AsyncCallback<T> callback;
+
+		Request(Set<K> keys, AsyncCallback<T> callback) {
+			this.keys = keys;
+			this.callback = callback;
+		}
+	}
+
+	/**
+	 * Lookups collected within a single window
+	 */
+	private class Batch implements Runnable {
+
+		final Context options;
+
+		final List<Request> requests = new ArrayList<Request>();
+
+		final Set<K> keys = new HashSet<K>();
+
+		boolean sent;
+
+		Batch(Context options) {
+			this.options = options;
+		}
+
+		public void run() {
+			synchronized (LookupCoalescer.this) {
+				if (sent)
+					return;
+				sent = true;
+				if (batches.get(options) == this)
+					batches.remove(options);
+			}
+			send(this);
+		}
+	}
+
+	private final ScheduledExecutorService executor;
+
+	private final long window;
+
+	private final int limit;
+
+	private final Map<Context, Batch> batches = new HashMap<Context, Batch>();
+
+	/**
+	 * @param executor
+	 * @param window
+	 *            microseconds to wait for other lookups
+	 * @param limit
+	 *            maximum number of keys in a single lookup
+	 */
+	LookupCoalescer(ScheduledExecutorService executor, long window, int limit) {
+		this.executor = executor;
+		this.window = window;
+		this.limit = limit;
+	}
+
+	/**
+	 * Look up keys using the underlying table
+	 * 
+	 * @param options
+	 * @param keys
+	 * @param callback
+	 */
+	protected abstract void lookup(Context options, Set<K> keys,
+			AsyncCallback<T> callback);
+
+	/**
+	 * Get part of result matching keys
+	 * 
+	 * @param result
+	 * @param keys
+	 * @return result of keys
+	 */
+	protected abstract T select(T result, Set<K> keys);
+
+	private Batch newBatch(Context options) {
+		Batch batch = new Batch(options);
+		executor.schedule(batch, window, TimeUnit.MICROSECONDS);
+		batches.put(options, batch);
+		return batch;
+	}
+
+	/**
+	 * Look up keys, possibly combined with other lookups
+	 * 
+	 * @param options
+	 * @param keys
+	 * @param callback
+	 */
+	void get(Context options, Set<K> keys, AsyncCallback<T> callback) {
+		if (keys.size() >= limit) {
+			lookup(options, keys, callback);
+			return;
+		}
+
+		Batch full = null;
+		RejectedExecutionException rejected = null;
+		synchronized (this) {
+			Batch batch = batches.get(options);
+			if (batch == null)
+				try {
+					batch = newBatch(options);
+				} catch (RejectedExecutionException e) {
+					rejected = e;
+				}
+			if (batch != null) {
+				batch.requests.add(new Request(keys, callback));
+				batch.keys.addAll(keys);
+				if (batch.keys.size() >= limit) {
+					batches.remove(options);
+					full = batch;
+				}
+			}
+		}
+		if (rejected != null) {
+			callback.onFailure(new DhtException(rejected));
+			return;
+		}
+		if (full != null)
+			try {
+				executor.execute(full);
+			} catch (RejectedExecutionException e) {
+				// Sent once the window elapses
+			}
+	}
+
+	private void send(final Batch batch) {
+		final AtomicBoolean completed = new AtomicBoolean();
+		AsyncCallback<T> callback = new AsyncCallback<T>() {
+
+			public void onSuccess(T result) {
+				if (!completed.compareAndSet(false, true))
+					return;
+				// Callbacks are isolated so one failing caller cannot strand
+				// the remaining requests of the batch
+				for (Request request : batch.requests)
+					try {
+						request.callback.onSuccess(select(result, request.keys));
+					} catch (RuntimeException e) {
+						LOG.log(Level.WARNING, "Lookup callback failed", e);
+					}
+			}
+
+			public void onFailure(DhtException error) {
+				if (!completed.compareAndSet(false, true))
+					return;
+				for (Request request : batch.requests)
+					try {
+						request.callback.onFailure(error);
+					} catch (RuntimeException e) {
+						LOG.log(Level.WARNING, "Lookup callback failed", e);
+					}
+			}
+		};
+		try {
+			lookup(batch.options, batch.keys, callback);
+		} catch (RuntimeException e) {
+			// Runs on the executor which would otherwise drop the exception
+			callback.onFailure(new DhtException(e));
+		}
+	}
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2011 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.gitective.mongo;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.MessageLite;
+import com.mongodb.DBEncoder;
+import com.mongodb.DBEncoderFactory;
+import com.mongodb.DefaultDBEncoder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.bson.BSON;
+
+/**
+ * Encoder writing protocol buffer message values as binary data
+ * <p>
+ * Messages are serialized straight into the output buffer of the document
+ * being encoded instead of being serialized into a new byte array each.
+ * Encoders created by {@link #FACTORY} are reused by each thread.
+ */
+public class MessageEncoder extends DefaultDBEncoder {
+
+	/**
+	 * Factory of per-thread message encoders
+	 */
+	public static final DBEncoderFactory FACTORY = new DBEncoderFactory() {
+
+		private final ThreadLocal<MessageEncoder> encoders = new ThreadLocal<MessageEncoder>() {
+
+			protected MessageEncoder initialValue() {
+				return new MessageEncoder();
+			}
+		};
+
+		public DBEncoder create() {
+			return encoders.get();
+		}
+	};
+
+	/**
+	 * Stream writing to the output buffer currently being encoded into
+	 */
+	private class BufferStream extends OutputStream {
+
+		int written;
+
+		public void write(int b) {
+			_buf.write(b);
+			written++;
+		}
+
+		public void write(byte[] b, int off, int len) {
+			_buf.write(b, off, len);
+			written += len;
+		}
+	}
+
+	private final BufferStream stream = new BufferStream();
+
+	private CodedOutputStream output;
+
+	protected boolean putSpecial(String name, Object value) {
+		if (!(value instanceof MessageLite))
+			return super.putSpecial(name, value);
+
+		MessageLite message = (MessageLite) value;
+		int size = message.getSerializedSize();
+		_put(BSON.BINARY, name);
+		_buf.writeInt(size);
+		_buf.write(BSON.B_GENERAL);
+		// Small fields are gathered in the coded stream's buffer while large
+		// byte fields are written through to the output buffer
+		if (output == null)
+			output = CodedOutputStream.newInstance(stream, 256);
+		stream.written = 0;
+		try {
+			message.writeTo(output);
+			output.flush();
+		} catch (IOException e) {
+			output = null;
+			throw new IllegalStateException(e.getMessage(), e);
+		}
+		if (stream.written != size)
+			throw new IllegalStateException("Message wrote " + stream.written
+					+ " bytes instead of " + size);
+		return true;
+	}
+}
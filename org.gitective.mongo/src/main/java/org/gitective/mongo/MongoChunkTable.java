@@ -22,16 +22,22 @@
 package org.gitective.mongo;
 
 import static org.gitective.mongo.IPropertyConstants.DATA;
+import static org.gitective.mongo.IPropertyConstants.ID;
 import static org.gitective.mongo.IPropertyConstants.INDEX;
 import static org.gitective.mongo.IPropertyConstants.META;
 
 import com.google.protobuf.InvalidProtocolBufferException;
+import com.mongodb.BasicDBObject;
 import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
+import com.mongodb.ReadPreference;
+import com.mongodb.WriteConcern;
 
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -50,60 +56,352 @@ import org.eclipse.jgit.storage.dht.spi.WriteBuffer;
  */
 public class MongoChunkTable implements ChunkTable {
 
+	/**
+	 * Default maximum number of keys sent in a single query
+	 */
+	public static final int DEFAULT_BATCH_SIZE = 256;
+
+	/**
+	 * Default number of documents returned per cursor batch
+	 */
+	public static final int DEFAULT_CURSOR_BATCH_SIZE = 16;
+
+	static final DBObject META_FIELDS = new BasicDBObject(META, 1);
+
 	private final DBCollection collection;
 
+	private final DBCollection metaCollection;
+
+	private int batchSize = DEFAULT_BATCH_SIZE;
+
+	private int cursorBatchSize = DEFAULT_CURSOR_BATCH_SIZE;
+
+	private ReadPreference readPreference;
+
+	private WriteConcern writeConcern;
+
+	private KeyCodec keyCodec = KeyCodec.STRING;
+
 	/**
 	 * @param collection
 	 */
 	public MongoChunkTable(DBCollection collection) {
+		this(collection, null);
+	}
+
+	/**
+	 * Create chunk table that also stores chunk meta in a separate collection
+	 * so meta reads never touch chunk documents
+	 * 
+	 * @param collection
+	 * @param metaCollection
+	 *            may be null to only store meta in chunk documents
+	 */
+	public MongoChunkTable(DBCollection collection, DBCollection metaCollection) {
 		this.collection = collection;
+		this.metaCollection = metaCollection;
+		collection.setDBEncoderFactory(MessageEncoder.FACTORY);
+		if (metaCollection != null)
+			metaCollection.setDBEncoderFactory(MessageEncoder.FACTORY);
+	}
+
+	/**
+	 * @return collection of chunks
+	 */
+	public DBCollection getCollection() {
+		return collection;
+	}
+
+	/**
+	 * @return collection of chunk meta, may be null
+	 */
+	public DBCollection getMetaCollection() {
+		return metaCollection;
+	}
+
+	/**
+	 * @return maximum number of keys sent in a single query
+	 */
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * @return number of documents returned per cursor batch
+	 */
+	public int getCursorBatchSize() {
+		return cursorBatchSize;
+	}
+
+	/**
+	 * @return read preference of lookups, may be null to use collection
+	 *         default
+	 */
+	public ReadPreference getReadPreference() {
+		return readPreference;
+	}
+
+	/**
+	 * Set maximum number of keys sent in a single query
+	 * 
+	 * @param batchSize
+	 * @return this table
+	 */
+	public MongoChunkTable setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+		return this;
+	}
+
+	/**
+	 * Set number of documents returned per cursor batch
+	 * 
+	 * @param cursorBatchSize
+	 * @return this table
+	 */
+	public MongoChunkTable setCursorBatchSize(int cursorBatchSize) {
+		this.cursorBatchSize = cursorBatchSize;
+		return this;
+	}
+
+	/**
+	 * Set codec of document ids
+	 * <p>
+	 * Documents are read regardless of the codec that wrote them but only
+	 * found by queries using the same codec, existing collections must be
+	 * converted with {@link MongoMigration} when changing codecs
+	 * 
+	 * @param keyCodec
+	 * @return this table
+	 */
+	public MongoChunkTable setKeyCodec(KeyCodec keyCodec) {
+		this.keyCodec = keyCodec;
+		return this;
+	}
+
+	/**
+	 * @return write concern of chunk writes, may be null to use collection
+	 *         default
+	 */
+	public WriteConcern getWriteConcern() {
+		return writeConcern;
+	}
+
+	/**
+	 * Set write concern of chunk writes
+	 * 
+	 * @param writeConcern
+	 *            may be null to use collection default
+	 * @return this table
+	 */
+	public MongoChunkTable setWriteConcern(WriteConcern writeConcern) {
+		this.writeConcern = writeConcern;
+		return this;
+	}
+
+	/**
+	 * Set read preference of chunk queries
+	 * <p>
+	 * Chunks not found when reading from secondaries are looked up again on
+	 * the primary since they may have just been written
+	 * 
+	 * @param readPreference
+	 *            may be null to use collection default
+	 * @return this table
+	 */
+	public MongoChunkTable setReadPreference(ReadPreference readPreference) {
+		this.readPreference = readPreference;
+		return this;
+	}
+
+	/**
+	 * Create members from chunk document
+	 * 
+	 * @param chunk
+	 * @param value
+	 * @return members or null if document has no chunk data
+	 * @throws InvalidProtocolBufferException
+	 */
+	protected Members createMembers(ChunkKey chunk, DBObject value)
+			throws InvalidProtocolBufferException {
+		if (value instanceof ChunkDocument)
+			return ((ChunkDocument) value).createMembers(chunk);
+
+		byte[] buffer = MongoUtils.getBytes(value, DATA);
+		if (buffer == null)
+			return null;
+
+		Members members = new Members();
+		members.setChunkKey(chunk);
+		members.setChunkData(buffer);
+
+		buffer = MongoUtils.getBytes(value, INDEX);
+		if (buffer != null)
+			members.setChunkIndex(buffer);
+
+		buffer = MongoUtils.getBytes(value, META);
+		if (buffer != null)
+			members.setMeta(ChunkMeta.parseFrom(buffer));
+		return members;
+	}
+
+	/**
+	 * Get meta from chunk document
+	 * 
+	 * @param value
+	 * @return meta or null if document has no meta
+	 * @throws InvalidProtocolBufferException
+	 */
+	protected ChunkMeta getChunkMeta(DBObject value)
+			throws InvalidProtocolBufferException {
+		if (value instanceof ChunkDocument)
+			return ((ChunkDocument) value).getChunkMeta();
+		byte[] buffer = MongoUtils.getBytes(value, META);
+		return buffer != null ? ChunkMeta.parseFrom(buffer) : null;
+	}
+
+	/**
+	 * Create query matching chunks with any of the given keys
+	 * 
+	 * @param keys
+	 * @return query
+	 */
+	protected DBObject createQuery(Collection<ChunkKey> keys) {
+		List<Object> ids = new ArrayList<Object>(keys.size());
+		for (ChunkKey key : keys)
+			ids.add(keyCodec.encode(key));
+		return MongoUtils.in(ID, ids);
+	}
+
+	/**
+	 * Get keys not present in given set
+	 * 
+	 * @param keys
+	 * @param found
+	 * @return missing keys
+	 */
+	protected List<ChunkKey> getMissing(Collection<ChunkKey> keys,
+			Set<ChunkKey> found) {
+		List<ChunkKey> missing = new ArrayList<ChunkKey>();
+		for (ChunkKey key : keys)
+			if (!found.contains(key))
+				missing.add(key);
+		return missing;
+	}
+
+	/**
+	 * Is the read preference of this table one that may read stale data?
+	 * 
+	 * @return true if not reading from the primary
+	 */
+	protected boolean isSecondaryRead() {
+		return readPreference != null
+				&& readPreference != ReadPreference.PRIMARY;
+	}
+
+	/**
+	 * Add chunks with given keys to collection of members
+	 * 
+	 * @param keys
+	 * @param preference
+	 *            may be null to use collection default
+	 * @param out
+	 * @param found
+	 *            keys of all found documents
+	 * @throws InvalidProtocolBufferException
+	 */
+	protected void get(Collection<ChunkKey> keys, ReadPreference preference,
+			Collection<Members> out, Set<ChunkKey> found)
+			throws InvalidProtocolBufferException {
+		DBCursor cursor = collection.find(createQuery(keys));
+		try {
+			cursor.setDecoderFactory(ChunkDecoder.FACTORY);
+			if (preference != null)
+				cursor.setReadPreference(preference);
+			cursor.batchSize(cursorBatchSize);
+			while (cursor.hasNext()) {
+				DBObject value = cursor.next();
+				ChunkKey chunk = ChunkKey.fromString(MongoUtils.getKey(value,
+						ID));
+				found.add(chunk);
+				Members members = createMembers(chunk, value);
+				if (members != null)
+					out.add(members);
+			}
+		} finally {
+			cursor.close();
+		}
 	}
 
 	public void get(Context options, Set<ChunkKey> keys,
 			AsyncCallback<Collection<Members>> callback) {
 		List<Members> out = new ArrayList<Members>(keys.size());
-		for (ChunkKey chunk : keys) {
-			DBObject value = collection.findOne(new IdObject(chunk.asString()));
-			if (value == null)
-				continue;
-			byte[] buffer = MongoUtils.getBytes(value, DATA);
-			if (buffer == null)
-				continue;
-
-			Members members = new Members();
-			members.setChunkKey(chunk);
-			members.setChunkData(buffer);
-
-			buffer = MongoUtils.getBytes(value, INDEX);
-			if (buffer != null)
-				members.setChunkIndex(buffer);
-
-			buffer = MongoUtils.getBytes(value, META);
-			if (buffer != null)
-				try {
-					members.setMeta(ChunkMeta.parseFrom(buffer));
-				} catch (InvalidProtocolBufferException e) {
-					callback.onFailure(new DhtException(e));
-					return;
-				}
-			out.add(members);
+		try {
+			for (List<ChunkKey> batch : MongoUtils.partition(keys, batchSize)) {
+				Set<ChunkKey> found = new HashSet<ChunkKey>();
+				get(batch, readPreference, out, found);
+				if (isSecondaryRead() && found.size() < batch.size())
+					get(getMissing(batch, found), ReadPreference.PRIMARY, out,
+							found);
+			}
+		} catch (InvalidProtocolBufferException e) {
+			callback.onFailure(new DhtException(e));
+			return;
 		}
 		callback.onSuccess(out);
 	}
 
+	/**
+	 * Add meta of chunks with given keys found in collection to map
+	 * 
+	 * @param source
+	 * @param keys
+	 * @param preference
+	 *            may be null to use collection default
+	 * @param out
+	 * @throws InvalidProtocolBufferException
+	 */
+	protected void getMeta(DBCollection source, Collection<ChunkKey> keys,
+			ReadPreference preference, Map<ChunkKey, ChunkMeta> out)
+			throws InvalidProtocolBufferException {
+		for (List<ChunkKey> batch : MongoUtils.partition(keys, batchSize)) {
+			DBCursor cursor = source.find(createQuery(batch), META_FIELDS);
+			try {
+				cursor.setDecoderFactory(ChunkDecoder.FACTORY);
+				if (preference != null)
+					cursor.setReadPreference(preference);
+				cursor.batchSize(batch.size());
+				while (cursor.hasNext()) {
+					DBObject object = cursor.next();
+					ChunkMeta meta = getChunkMeta(object);
+					if (meta != null)
+						out.put(ChunkKey.fromString(MongoUtils.getKey(
+								object, ID)), meta);
+				}
+			} finally {
+				cursor.close();
+			}
+		}
+	}
+
+	private void getMeta(Collection<ChunkKey> keys, ReadPreference preference,
+			Map<ChunkKey, ChunkMeta> out) throws InvalidProtocolBufferException {
+		if (metaCollection != null) {
+			getMeta(metaCollection, keys, preference, out);
+			List<ChunkKey> missing = getMissing(keys, out.keySet());
+			if (!missing.isEmpty())
+				getMeta(collection, missing, preference, out);
+		} else
+			getMeta(collection, keys, preference, out);
+	}
+
 	public void getMeta(Context options, Set<ChunkKey> keys,
 			AsyncCallback<Map<ChunkKey, ChunkMeta>> callback) {
 		Map<ChunkKey, ChunkMeta> out = new HashMap<ChunkKey, ChunkMeta>();
 		try {
-			for (ChunkKey chunk : keys) {
-				DBObject object = collection.findOne(new IdObject(chunk
-						.asString()));
-				if (object == null)
-					continue;
-				byte[] value = MongoUtils.getBytes(object, META);
-				if (value != null)
-					out.put(chunk, ChunkMeta.parseFrom(value));
-			}
+			getMeta(keys, readPreference, out);
+			if (isSecondaryRead() && out.size() < keys.size())
+				getMeta(getMissing(keys, out.keySet()),
+						ReadPreference.PRIMARY, out);
 			callback.onSuccess(out);
 		} catch (InvalidProtocolBufferException e) {
 			callback.onFailure(new DhtException(e));
@@ -111,29 +409,102 @@ public class MongoChunkTable implements ChunkTable {
 	}
 
 	/**
-	 * Update/insert chunk into collection
+	 * Update/insert document matching query using given write buffer
 	 * 
 	 * @param query
-	 * @param document
+	 * @param update
+	 * @param buffer
+	 * @throws DhtException
 	 */
-	protected void upsert(DBObject query, DBObject document) {
-		collection.update(query, document, true, false);
+	protected void upsert(DBObject query, DBObject update, WriteBuffer buffer)
+			throws DhtException {
+		upsert(collection, query, update, buffer);
 	}
 
-	public void put(Members chunk, WriteBuffer buffer) throws DhtException {
-		final IdObject id = new IdObject(chunk.getChunkKey().asString());
+	private void upsert(DBCollection target, DBObject query, DBObject update,
+			WriteBuffer buffer) throws DhtException {
+		if (buffer instanceof MongoWriteBuffer)
+			((MongoWriteBuffer) buffer).upsert(target, writeConcern, query,
+					update);
+		else if (writeConcern != null)
+			target.update(query, update, true, false, writeConcern);
+		else
+			target.update(query, update, true, false);
+	}
 
-		if (chunk.hasChunkData())
-			upsert(id, MongoUtils.set(DATA, chunk.getChunkData()));
+	/**
+	 * Remove document matching query using given write buffer
+	 * 
+	 * @param query
+	 * @param buffer
+	 * @throws DhtException
+	 */
+	protected void remove(DBObject query, WriteBuffer buffer)
+			throws DhtException {
+		remove(collection, query, buffer);
+	}
 
-		if (chunk.hasChunkIndex())
-			upsert(id, MongoUtils.set(INDEX, chunk.getChunkIndex()));
+	private void remove(DBCollection target, DBObject query,
+			WriteBuffer buffer) throws DhtException {
+		if (buffer instanceof MongoWriteBuffer)
+			((MongoWriteBuffer) buffer).remove(target, writeConcern, query);
+		else if (writeConcern != null)
+			target.remove(query, writeConcern);
+		else
+			target.remove(query);
+	}
 
+	/**
+	 * Create document containing all fields of the given chunk
+	 * 
+	 * @param chunk
+	 * @return document
+	 */
+	protected DBObject createDocument(Members chunk) {
+		BasicDBObject document = new BasicDBObject(ID,
+				keyCodec.encode(chunk.getChunkKey()));
+		document.put(DATA, chunk.getChunkData());
+		document.put(INDEX, chunk.getChunkIndex());
+		document.put(META, chunk.getMeta());
+		return document;
+	}
+
+	/**
+	 * Create update setting only the fields present in the given chunk
+	 * 
+	 * @param chunk
+	 * @return update
+	 */
+	protected DBObject createUpdate(Members chunk) {
+		BasicDBObject fields = new BasicDBObject();
+		if (chunk.hasChunkData())
+			fields.put(DATA, chunk.getChunkData());
+		if (chunk.hasChunkIndex())
+			fields.put(INDEX, chunk.getChunkIndex());
 		if (chunk.hasMeta())
-			upsert(id, MongoUtils.set(META, chunk.getMeta().toByteArray()));
+			fields.put(META, chunk.getMeta());
+		return new BasicDBObject("$set", fields);
+	}
+
+	public void put(Members chunk, WriteBuffer buffer) throws DhtException {
+		final IdObject id = new IdObject(keyCodec.encode(chunk
+				.getChunkKey()));
+
+		if (chunk.hasChunkData() && chunk.hasChunkIndex() && chunk.hasMeta())
+			upsert(id, createDocument(chunk), buffer);
+		else if (chunk.hasChunkData() || chunk.hasChunkIndex()
+				|| chunk.hasMeta())
+			upsert(id, createUpdate(chunk), buffer);
+
+		if (metaCollection != null && chunk.hasMeta())
+			upsert(metaCollection, id,
+					MongoUtils.set(META, chunk.getMeta()), buffer);
 	}
 
 	public void remove(ChunkKey key, WriteBuffer buffer) throws DhtException {
-		collection.remove(new IdObject(key.asString()));
+		final IdObject id = new IdObject(keyCodec.encode(key));
+		remove(id, buffer);
+		if (metaCollection != null)
+			remove(metaCollection, id, buffer);
 	}
 }
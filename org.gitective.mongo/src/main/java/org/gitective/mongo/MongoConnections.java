@@ -0,0 +1,243 @@
+/*
+ * Copyright (c) 2011 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.gitective.mongo;
+
+import com.mongodb.DB;
+import com.mongodb.Mongo;
+import com.mongodb.MongoException;
+import com.mongodb.MongoOptions;
+import com.mongodb.MongoURI;
+import com.mongodb.ServerAddress;
+
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Registry of MongoDB connections that shares a single connection pool per
+ * connection string
+ * <p>
+ * Connection strings are either a host with optional port or a
+ * <code>mongodb://</code> URI. The pool settings of this registry apply to
+ * every connection it opens.
+ */
+public class MongoConnections {
+
+	/**
+	 * Default connection string
+	 */
+	public static final String DEFAULT_CONNECTION = "localhost";
+
+	private static final MongoConnections DEFAULT = new MongoConnections();
+
+	/**
+	 * Get default registry shared by this process
+	 * 
+	 * @return registry
+	 */
+	public static MongoConnections getDefault() {
+		return DEFAULT;
+	}
+
+	private final ConcurrentMap<String, Mongo> connections = new ConcurrentHashMap<String, Mongo>();
+
+	private final MongoOptions options;
+
+	/**
+	 * Create registry with default pool settings
+	 */
+	public MongoConnections() {
+		this(new MongoOptions());
+	}
+
+	/**
+	 * Create registry with given pool settings
+	 * 
+	 * @param options
+	 */
+	public MongoConnections(MongoOptions options) {
+		this.options = options.copy();
+	}
+
+	/**
+	 * Set maximum number of connections per host
+	 * 
+	 * @param connectionsPerHost
+	 * @return this registry
+	 */
+	public MongoConnections setConnectionsPerHost(int connectionsPerHost) {
+		options.connectionsPerHost = connectionsPerHost;
+		return this;
+	}
+
+	/**
+	 * Set multiplier of connections per host that bounds the number of
+	 * threads allowed to block waiting for a connection
+	 * 
+	 * @param multiplier
+	 * @return this registry
+	 */
+	public MongoConnections setThreadsAllowedToBlockForConnectionMultiplier(
+			int multiplier) {
+		options.threadsAllowedToBlockForConnectionMultiplier = multiplier;
+		return this;
+	}
+
+	/**
+	 * Set maximum milliseconds a thread waits for a connection
+	 * 
+	 * @param maxWaitTime
+	 * @return this registry
+	 */
+	public MongoConnections setMaxWaitTime(int maxWaitTime) {
+		options.maxWaitTime = maxWaitTime;
+		return this;
+	}
+
+	/**
+	 * Set connect timeout in milliseconds
+	 * 
+	 * @param connectTimeout
+	 * @return this registry
+	 */
+	public MongoConnections setConnectTimeout(int connectTimeout) {
+		options.connectTimeout = connectTimeout;
+		return this;
+	}
+
+	/**
+	 * Set socket timeout in milliseconds
+	 * 
+	 * @param socketTimeout
+	 * @return this registry
+	 */
+	public MongoConnections setSocketTimeout(int socketTimeout) {
+		options.socketTimeout = socketTimeout;
+		return this;
+	}
+
+	/**
+	 * Set whether sockets are kept alive
+	 * 
+	 * @param socketKeepAlive
+	 * @return this registry
+	 */
+	public MongoConnections setSocketKeepAlive(boolean socketKeepAlive) {
+		options.socketKeepAlive = socketKeepAlive;
+		return this;
+	}
+
+	/**
+	 * Get copy of the pool settings used for new connections
+	 * 
+	 * @return options
+	 */
+	public MongoOptions getOptions() {
+		return options.copy();
+	}
+
+	/**
+	 * Open connection to the hosts in the given connection string
+	 * 
+	 * @param connection
+	 * @return connection
+	 * @throws UnknownHostException
+	 */
+	protected Mongo open(String connection) throws UnknownHostException {
+		List<String> hosts;
+		if (connection.startsWith(MongoURI.MONGODB_PREFIX))
+			hosts = new MongoURI(connection).getHosts();
+		else {
+			hosts = new ArrayList<String>(1);
+			hosts.add(connection);
+		}
+		List<ServerAddress> addresses = new ArrayList<ServerAddress>(
+				hosts.size());
+		for (String host : hosts)
+			addresses.add(new ServerAddress(host));
+		if (addresses.size() == 1)
+			return new Mongo(addresses.get(0), options.copy());
+		return new Mongo(addresses, options.copy());
+	}
+
+	/**
+	 * Get shared connection for connection string
+	 * 
+	 * @param connection
+	 * @return connection
+	 */
+	public Mongo get(String connection) {
+		Mongo mongo = connections.get(connection);
+		if (mongo != null)
+			return mongo;
+		synchronized (connections) {
+			mongo = connections.get(connection);
+			if (mongo == null) {
+				try {
+					mongo = open(connection);
+				} catch (UnknownHostException e) {
+					throw new IllegalArgumentException(e);
+				} catch (MongoException e) {
+					throw new IllegalArgumentException(e);
+				}
+				connections.put(connection, mongo);
+			}
+			return mongo;
+		}
+	}
+
+	/**
+	 * Get database with given name using shared connection
+	 * <p>
+	 * The database is authenticated when the connection string is a URI with
+	 * credentials
+	 * 
+	 * @param connection
+	 * @param name
+	 * @return database
+	 */
+	public DB getDB(String connection, String name) {
+		DB db = get(connection).getDB(name);
+		if (connection.startsWith(MongoURI.MONGODB_PREFIX)
+				&& !db.isAuthenticated()) {
+			MongoURI uri = new MongoURI(connection);
+			if (uri.getUsername() != null
+					&& !db.authenticate(uri.getUsername(), uri.getPassword()))
+				throw new IllegalArgumentException("Authentication failed for "
+						+ uri.getUsername());
+		}
+		return db;
+	}
+
+	/**
+	 * Close all connections
+	 */
+	public void close() {
+		synchronized (connections) {
+			for (Mongo mongo : connections.values())
+				mongo.close();
+			connections.clear();
+		}
+	}
+}
@@ -22,13 +22,17 @@
 package org.gitective.mongo;
 
 import static org.gitective.mongo.ICollectionConstants.CHUNKS;
+import static org.gitective.mongo.ICollectionConstants.CHUNK_META;
 import static org.gitective.mongo.ICollectionConstants.OBJECTS;
+import static org.gitective.mongo.ICollectionConstants.PACKED_REFS;
 import static org.gitective.mongo.ICollectionConstants.REFS;
 import static org.gitective.mongo.ICollectionConstants.REPOS;
 import static org.gitective.mongo.ICollectionConstants.REPO_INDEX;
 import static org.gitective.mongo.ICollectionConstants.REPO_INFO;
 
 import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.ReadPreference;
 
 import java.io.IOException;
 
@@ -82,29 +86,155 @@ public class MongoDatabase implements Database {
 
 	private final MongoRepositoryTable repository;
 
-	private final MongoRefTable ref;
+	private final RefTable ref;
 
-	private final MongoObjectIndexTable objectIndex;
+	private final ObjectIndexTable objectIndex;
 
-	private final MongoChunkTable chunk;
+	private final ChunkTable chunk;
 
 	/**
-	 * Create a MongoDB-backed database
+	 * Create a MongoDB-backed database configured by the given builder
 	 * 
-	 * @param db
+	 * @param builder
 	 */
-	public MongoDatabase(final DB db) {
-		repositoryIndex = new MongoRepositoryIndexTable(
-				db.getCollection(REPO_INDEX));
+	public MongoDatabase(final MongoDatabaseBuilder builder) {
+		final DB db = builder.getDB();
+
+		MongoIndexManager indexManager = new MongoIndexManager(db);
+		if (builder.isEnsureIndexes())
+			indexManager.ensureIndexes();
 
+		DBCollection repoIndexCollection = db.getCollection(REPO_INDEX);
+		repoIndexCollection.setReadPreference(ReadPreference.PRIMARY);
+		repositoryIndex = new MongoRepositoryIndexTable(repoIndexCollection);
+
+		// Write concerns are set on the tables since collections are shared
+		// by all databases opened on the same DB
 		repository = new MongoRepositoryTable(db.getCollection(REPOS),
 				db.getCollection(REPO_INFO));
+		repository.setWriteConcern(builder.getRepositoryWriteConcern());
+		repository.setKeyBlockSize(builder.getRepositoryKeyBlockSize());
+
+		RefTable refTable;
+		if (builder.getPackedRefShards() > 0) {
+			DBCollection refCollection = db.getCollection(PACKED_REFS);
+			refCollection.setReadPreference(ReadPreference.PRIMARY);
+			refTable = new MongoPackedRefTable(refCollection,
+					builder.getPackedRefShards()).setWriteConcern(builder
+					.getRefWriteConcern());
+		} else {
+			DBCollection refCollection = db.getCollection(REFS);
+			refCollection.setReadPreference(ReadPreference.PRIMARY);
+			refTable = new MongoRefTable(refCollection).setWriteConcern(builder
+					.getRefWriteConcern());
+		}
+		if (builder.getRefCacheMaxAge() > 0)
+			refTable = new CachedRefTable(refTable,
+					builder.getRefUpdateFeed(), builder.getRefCacheMaxAge());
+		ref = refTable;
+		indexManager.checkQueryPlans(builder.getQueryPlanCheck());
 
-		ref = new MongoRefTable(db.getCollection(REFS));
+		DBCollection objectsCollection = db.getCollection(OBJECTS);
+		MongoObjectIndexTable mongoObjectIndex = new MongoObjectIndexTable(
+				objectsCollection);
+		mongoObjectIndex.setWriteConcern(builder.getObjectIndexWriteConcern());
+		mongoObjectIndex.setKeyCodec(builder.getKeyCodec());
+		mongoObjectIndex.setValueArray(builder.isObjectIndexValueArray());
+		mongoObjectIndex.setBatchSize(builder.getObjectIndexBatchSize());
+		mongoObjectIndex.setCursorBatchSize(builder
+				.getObjectIndexCursorBatchSize());
+		mongoObjectIndex.setFilter(builder.getObjectIndexFilter());
+		mongoObjectIndex.setReadPreference(builder
+				.getObjectIndexReadPreference());
+		ObjectIndexTable objectIndexTable = mongoObjectIndex;
+		if (builder.getAsyncClient() != null)
+			objectIndexTable = new AsyncObjectIndexTable(mongoObjectIndex,
+					builder.getAsyncClient()).setSecondaryClient(builder
+					.getAsyncSecondaryClient());
+		if (builder.isSingleFlight())
+			objectIndexTable = new SingleFlightObjectIndexTable(
+					objectIndexTable);
+		if (builder.getCoalesceExecutor() != null)
+			objectIndexTable = new CoalescingObjectIndexTable(
+					objectIndexTable, builder.getCoalesceExecutor(),
+					builder.getCoalesceWindow(),
+					builder.getObjectIndexBatchSize());
+		if (builder.getExecutor() != null)
+			objectIndexTable = new ExecutorObjectIndexTable(objectIndexTable,
+					builder.getExecutor())
+					.setBatchSize(builder.getObjectIndexBatchSize())
+					.setParallelism(builder.getLookupParallelism());
+		objectIndex = objectIndexTable;
 
-		objectIndex = new MongoObjectIndexTable(db.getCollection(OBJECTS));
+		DBCollection chunksCollection = db.getCollection(CHUNKS);
+		DBCollection chunkMetaCollection = null;
+		if (builder.isSeparateChunkMeta())
+			chunkMetaCollection = db.getCollection(CHUNK_META);
+		MongoChunkTable mongoChunk = new MongoChunkTable(chunksCollection,
+				chunkMetaCollection);
+		mongoChunk.setWriteConcern(builder.getChunkWriteConcern());
+		mongoChunk.setKeyCodec(builder.getKeyCodec());
+		mongoChunk.setBatchSize(builder.getChunkBatchSize());
+		mongoChunk.setCursorBatchSize(builder.getChunkCursorBatchSize());
+		mongoChunk.setReadPreference(builder.getChunkReadPreference());
+		ChunkTable chunkTable = mongoChunk;
+		if (builder.getAsyncClient() != null)
+			chunkTable = new AsyncChunkTable(mongoChunk,
+					builder.getAsyncClient()).setSecondaryClient(builder
+					.getAsyncSecondaryClient());
+		if (builder.isSingleFlight())
+			chunkTable = new SingleFlightChunkTable(chunkTable);
+		if (builder.getCoalesceExecutor() != null)
+			chunkTable = new CoalescingChunkTable(chunkTable,
+					builder.getCoalesceExecutor(), builder.getCoalesceWindow(),
+					builder.getChunkBatchSize());
+		if (builder.getChunkCache() != null
+				|| builder.getDiskChunkCache() != null)
+			chunkTable = new CachedChunkTable(chunkTable,
+					builder.getChunkCache(), builder.getDiskChunkCache());
+		if (builder.getExecutor() != null)
+			chunkTable = new ExecutorChunkTable(chunkTable,
+					builder.getExecutor())
+					.setBatchSize(builder.getChunkBatchSize())
+					.setParallelism(builder.getLookupParallelism());
+		chunk = chunkTable;
+	}
 
-		chunk = new MongoChunkTable(db.getCollection(CHUNKS));
+	/**
+	 * Create a MongoDB-backed database
+	 * 
+	 * @param db
+	 */
+	public MongoDatabase(final DB db) {
+		this(db, null);
+	}
+
+	/**
+	 * Create a MongoDB-backed database with chunk lookups answered from the
+	 * given cache when possible
+	 * 
+	 * @param db
+	 * @param chunkCache
+	 *            may be null to disable caching
+	 */
+	public MongoDatabase(final DB db, final ChunkCache chunkCache) {
+		this(db, chunkCache, null);
+	}
+
+	/**
+	 * Create a MongoDB-backed database with chunk lookups answered from the
+	 * given memory and disk caches when possible
+	 * 
+	 * @param db
+	 * @param chunkCache
+	 *            may be null to disable memory caching
+	 * @param diskChunkCache
+	 *            may be null to disable disk caching
+	 */
+	public MongoDatabase(final DB db, final ChunkCache chunkCache,
+			final DiskChunkCache diskChunkCache) {
+		this(new MongoDatabaseBuilder().setDB(db).setChunkCache(chunkCache)
+				.setDiskChunkCache(diskChunkCache));
 	}
 
 	/**
@@ -113,14 +243,14 @@ public class MongoDatabase implements Database {
 	 * @param dbName
 	 */
 	public MongoDatabase(final String dbName) {
-		this(MongoUtils.getDB(dbName));
+		this(new MongoDatabaseBuilder().setDatabaseName(dbName));
 	}
 
 	/**
 	 * Create a MongoDB-backed database with database name of 'git'
 	 */
 	public MongoDatabase() {
-		this("git");
+		this(new MongoDatabaseBuilder());
 	}
 
 	public RepositoryIndexTable repositoryIndex() {
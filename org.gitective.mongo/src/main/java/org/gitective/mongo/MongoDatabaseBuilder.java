@@ -0,0 +1,723 @@
+/*
+ * Copyright (c) 2011 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.gitective.mongo;
+
+import com.mongodb.DB;
+import com.mongodb.ReadPreference;
+import com.mongodb.WriteConcern;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Builder of {@link MongoDatabase} instances
+ */
+public class MongoDatabaseBuilder {
+
+	/**
+	 * Default database name
+	 */
+	public static final String DEFAULT_DATABASE_NAME = "git";
+
+	private MongoConnections connections = MongoConnections.getDefault();
+
+	private String connection = MongoConnections.DEFAULT_CONNECTION;
+
+	private String databaseName = DEFAULT_DATABASE_NAME;
+
+	private DB db;
+
+	private ChunkCache chunkCache;
+
+	private DiskChunkCache diskChunkCache;
+
+	private boolean separateChunkMeta;
+
+	private int chunkBatchSize = MongoChunkTable.DEFAULT_BATCH_SIZE;
+
+	private int chunkCursorBatchSize = MongoChunkTable.DEFAULT_CURSOR_BATCH_SIZE;
+
+	private ReadPreference chunkReadPreference;
+
+	private ObjectIndexFilter objectIndexFilter;
+
+	private ReadPreference objectIndexReadPreference;
+
+	private boolean objectIndexValueArray;
+
+	private int objectIndexBatchSize = MongoObjectIndexTable.DEFAULT_BATCH_SIZE;
+
+	private int objectIndexCursorBatchSize = MongoObjectIndexTable.DEFAULT_CURSOR_BATCH_SIZE;
+
+	private int repositoryKeyBlockSize = MongoRepositoryTable.DEFAULT_KEY_BLOCK_SIZE;
+
+	private KeyCodec keyCodec = KeyCodec.STRING;
+
+	private Executor executor;
+
+	private AsyncMongoClient asyncClient;
+
+	private AsyncMongoClient asyncSecondaryClient;
+
+	private boolean singleFlight;
+
+	private ScheduledExecutorService coalesceExecutor;
+
+	private long coalesceWindow = CoalescingChunkTable.DEFAULT_WINDOW;
+
+	private int lookupParallelism = ExecutorChunkTable.DEFAULT_PARALLELISM;
+
+	private WriteConcern chunkWriteConcern;
+
+	private WriteConcern objectIndexWriteConcern;
+
+	private WriteConcern repositoryWriteConcern;
+
+	private WriteConcern refWriteConcern = WriteConcern.SAFE;
+
+	private int packedRefShards;
+
+	private long refCacheMaxAge;
+
+	private RefUpdateFeed refUpdateFeed;
+
+	private boolean ensureIndexes = true;
+
+	private MongoIndexManager.PlanCheck queryPlanCheck = MongoIndexManager.PlanCheck.NONE;
+
+	/**
+	 * Set connection registry used to open the database
+	 * 
+	 * @param connections
+	 * @return this builder
+	 */
+	public MongoDatabaseBuilder setConnections(MongoConnections connections) {
+		this.connections = connections;
+		return this;
+	}
+
+	/**
+	 * Set connection string of host, host and port, or mongodb:// URI
+	 * 
+	 * @param connection
+	 * @return this builder
+	 */
+	public MongoDatabaseBuilder setConnection(String connection) {
+		this.connection = connection;
+		return this;
+	}
+
+	/**
+	 * Set name of database opened from the connection registry
+	 * 
+	 * @param databaseName
+	 * @return this builder
+	 */
+	public MongoDatabaseBuilder setDatabaseName(String databaseName) {
+		this.databaseName = databaseName;
+		return this;
+	}
+
+	/**
+	 * Set database to use instead of opening one from the connection registry
+	 * 
+	 * @param db
+	 * @return this builder
+	 */
+	public MongoDatabaseBuilder setDB(DB db) {
+		this.db = db;
+		return this;
+	}
+
+	/**
+	 * Set memory cache of chunks
+	 * 
+	 * @param chunkCache
+	 * @return this builder
+	 */
+	public MongoDatabaseBuilder setChunkCache(ChunkCache chunkCache) {
+		this.chunkCache = chunkCache;
+		return this;
+	}
+
+	/**
+	 * Set disk cache of chunks
+	 * 
+	 * @param diskChunkCache
+	 * @return this builder
+	 */
+	public MongoDatabaseBuilder setDiskChunkCache(DiskChunkCache diskChunkCache) {
+		this.diskChunkCache = diskChunkCache;
+		return this;
+	}
+
+	/**
+	 * Set whether chunk meta is also stored in a separate collection
+	 * 
+	 * @param separateChunkMeta
+	 * @return this builder
+	 */
+	public MongoDatabaseBuilder setSeparateChunkMeta(boolean separateChunkMeta) {
+		this.separateChunkMeta = separateChunkMeta;
+		return this;
+	}
+
+	/**
+	 * Set maximum number of keys sent in a single chunk query
+	 * 
+	 * @param batchSize
+	 * @return this builder
+	 */
+	public MongoDatabaseBuilder setChunkBatchSize(int batchSize) {
+		chunkBatchSize = batchSize;
+		return this;
+	}
+
+	/**
+	 * Set number of chunk documents returned per cursor batch
+	 * 
+	 * @param cursorBatchSize
+	 * @return this builder
+	 */
+	public MongoDatabaseBuilder setChunkCursorBatchSize(int cursorBatchSize) {
+		chunkCursorBatchSize = cursorBatchSize;
+		return this;
+	}
+
+	/**
+	 * Set read preference of chunk queries
+	 * 
+	 * @param readPreference
+	 *            may be null to use collection default
+	 * @return this builder
+	 */
+	public MongoDatabaseBuilder setChunkReadPreference(
+			ReadPreference readPreference) {
+		chunkReadPreference = readPreference;
+		return this;
+	}
+
+	/**
+	 * Set read preference of object index queries
+	 * 
+	 * @param readPreference
+	 *            may be null to use collection default
+	 * @return this builder
+	 */
+	public MongoDatabaseBuilder setObjectIndexReadPreference(
+			ReadPreference readPreference) {
+		objectIndexReadPreference = readPreference;
+		return this;
+	}
+
+	/**
+	 * Set filter used to skip lookups of objects not in the object index
+	 * 
+	 * @param filter
+	 * @return this builder
+	 */
+	public MongoDatabaseBuilder setObjectIndexFilter(ObjectIndexFilter filter) {
+		objectIndexFilter = filter;
+		return this;
+	}
+
+	/**
+	 * Set whether object locations are written as an array of entries
+	 * 
+	 * @param valueArray
+	 * @return this builder
+	 */
+	public MongoDatabaseBuilder setObjectIndexValueArray(boolean valueArray) {
+		objectIndexValueArray = valueArray;
+		return this;
+	}
+
+	/**
+	 * Set maximum number of keys sent in a single object index query
+	 * 
+	 * @param batchSize
+	 * @return this builder
+	 */
+	public MongoDatabaseBuilder setObjectIndexBatchSize(int batchSize) {
+		objectIndexBatchSize = batchSize;
+		return this;
+	}
+
+	/**
+	 * Set number of object index documents returned per cursor batch
+	 * 
+	 * @param cursorBatchSize
+	 * @return this builder
+	 */
+	public MongoDatabaseBuilder setObjectIndexCursorBatchSize(
+			int cursorBatchSize) {
+		objectIndexCursorBatchSize = cursorBatchSize;
+		return this;
+	}
+
+	/**
+	 * Set number of repository keys reserved from the database at a time
+	 * 
+	 * @param blockSize
+	 * @return this builder
+	 */
+	public MongoDatabaseBuilder setRepositoryKeyBlockSize(int blockSize) {
+		repositoryKeyBlockSize = blockSize;
+		return this;
+	}
+
+	/**
+	 * Set executor that runs chunk and object index lookups
+	 * 
+	 * @param executor
+	 *            may be null to run lookups on the calling thread
+	 * @return this builder
+	 */
+	public MongoDatabaseBuilder setExecutor(Executor executor) {
+		this.executor = executor;
+		return this;
+	}
+
+	/**
+	 * Set non-blocking client connected to the primary used for chunk and
+	 * object index lookups
+	 * 
+	 * @param asyncClient
+	 *            may be null to use blocking lookups
+	 * @return this builder
+	 */
+	public MongoDatabaseBuilder setAsyncClient(AsyncMongoClient asyncClient) {
+		this.asyncClient = asyncClient;
+		return this;
+	}
+
+	/**
+	 * Set non-blocking client connected to a secondary used for lookups of
+	 * tables with a read preference allowing secondaries
+	 * 
+	 * @param asyncClient
+	 *            may be null to send all lookups to the primary client
+	 * @return this builder
+	 */
+	public MongoDatabaseBuilder setAsyncSecondaryClient(
+			AsyncMongoClient asyncClient) {
+		asyncSecondaryClient = asyncClient;
+		return this;
+	}
+
+	/**
+	 * Set whether lookups of keys already being looked up wait for the
+	 * lookup in flight instead of being sent again
+	 * 
+	 * @param singleFlight
+	 * @return this builder
+	 */
+	public MongoDatabaseBuilder setSingleFlight(boolean singleFlight) {
+		this.singleFlight = singleFlight;
+		return this;
+	}
+
+	/**
+	 * Set executor that sends lookups combined from concurrent lookups
+	 * 
+	 * @param executor
+	 *            may be null to send each lookup separately
+	 * @return this builder
+	 */
+	public MongoDatabaseBuilder setCoalesceExecutor(
+			ScheduledExecutorService executor) {
+		coalesceExecutor = executor;
+		return this;
+	}
+
+	/**
+	 * Set microseconds concurrent lookups are collected before being sent
+	 * together
+	 * 
+	 * @param window
+	 * @return this builder
+	 */
+	public MongoDatabaseBuilder setCoalesceWindow(long window) {
+		coalesceWindow = window;
+		return this;
+	}
+
+	/**
+	 * Set maximum number of batches of a single lookup running at the same
+	 * time on the executor
+	 * 
+	 * @param parallelism
+	 * @return this builder
+	 */
+	public MongoDatabaseBuilder setLookupParallelism(int parallelism) {
+		lookupParallelism = parallelism;
+		return this;
+	}
+
+	/**
+	 * Set codec of chunk and object index document ids
+	 * 
+	 * @param keyCodec
+	 * @return this builder
+	 */
+	public MongoDatabaseBuilder setKeyCodec(KeyCodec keyCodec) {
+		this.keyCodec = keyCodec;
+		return this;
+	}
+
+	/**
+	 * Set write concern acknowledged when buffered chunk writes are flushed
+	 * 
+	 * @param writeConcern
+	 *            may be null to use database default
+	 * @return this builder
+	 */
+	public MongoDatabaseBuilder setChunkWriteConcern(WriteConcern writeConcern) {
+		chunkWriteConcern = writeConcern;
+		return this;
+	}
+
+	/**
+	 * Set write concern acknowledged when buffered object index writes are
+	 * flushed
+	 * 
+	 * @param writeConcern
+	 *            may be null to use database default
+	 * @return this builder
+	 */
+	public MongoDatabaseBuilder setObjectIndexWriteConcern(
+			WriteConcern writeConcern) {
+		objectIndexWriteConcern = writeConcern;
+		return this;
+	}
+
+	/**
+	 * Set write concern acknowledged when buffered repository writes are
+	 * flushed
+	 * 
+	 * @param writeConcern
+	 *            may be null to use database default
+	 * @return this builder
+	 */
+	public MongoDatabaseBuilder setRepositoryWriteConcern(
+			WriteConcern writeConcern) {
+		repositoryWriteConcern = writeConcern;
+		return this;
+	}
+
+	/**
+	 * Set write concern of ref updates
+	 * 
+	 * @param writeConcern
+	 *            must wait for acknowledgement of the write
+	 * @return this builder
+	 */
+	public MongoDatabaseBuilder setRefWriteConcern(WriteConcern writeConcern) {
+		refWriteConcern = writeConcern;
+		return this;
+	}
+
+	/**
+	 * Set number of documents the refs of a repository are packed into
+	 * 
+	 * @param shards
+	 *            0 to store each ref in its own document
+	 * @return this builder
+	 */
+	public MongoDatabaseBuilder setPackedRefShards(int shards) {
+		packedRefShards = shards;
+		return this;
+	}
+
+	/**
+	 * Set milliseconds all refs of a repository are cached
+	 * 
+	 * @param maxAge
+	 *            0 to not cache refs
+	 * @return this builder
+	 */
+	public MongoDatabaseBuilder setRefCacheMaxAge(long maxAge) {
+		refCacheMaxAge = maxAge;
+		return this;
+	}
+
+	/**
+	 * Set feed publishing and receiving ref updates of other processes
+	 * 
+	 * @param feed
+	 *            may be null to only invalidate cached refs on local updates
+	 * @return this builder
+	 */
+	public MongoDatabaseBuilder setRefUpdateFeed(RefUpdateFeed feed) {
+		refUpdateFeed = feed;
+		return this;
+	}
+
+	/**
+	 * Set whether missing indexes are created when the database is built
+	 * <p>
+	 * The unique ref index is always created by {@link MongoRefTable} since
+	 * creating refs depends on it.
+	 * 
+	 * @param ensureIndexes
+	 * @return this builder
+	 */
+	public MongoDatabaseBuilder setEnsureIndexes(boolean ensureIndexes) {
+		this.ensureIndexes = ensureIndexes;
+		return this;
+	}
+
+	/**
+	 * Set check applied to query plans when the database is built
+	 * 
+	 * @param check
+	 * @return this builder
+	 */
+	public MongoDatabaseBuilder setQueryPlanCheck(
+			MongoIndexManager.PlanCheck check) {
+		queryPlanCheck = check;
+		return this;
+	}
+
+	/**
+	 * Get database, opening it from the connection registry if not set
+	 * 
+	 * @return database
+	 */
+	public DB getDB() {
+		if (db != null)
+			return db;
+		return connections.getDB(connection, databaseName);
+	}
+
+	/**
+	 * @return chunkCache
+	 */
+	public ChunkCache getChunkCache() {
+		return chunkCache;
+	}
+
+	/**
+	 * @return diskChunkCache
+	 */
+	public DiskChunkCache getDiskChunkCache() {
+		return diskChunkCache;
+	}
+
+	/**
+	 * @return separateChunkMeta
+	 */
+	public boolean isSeparateChunkMeta() {
+		return separateChunkMeta;
+	}
+
+	/**
+	 * @return chunkBatchSize
+	 */
+	public int getChunkBatchSize() {
+		return chunkBatchSize;
+	}
+
+	/**
+	 * @return chunkCursorBatchSize
+	 */
+	public int getChunkCursorBatchSize() {
+		return chunkCursorBatchSize;
+	}
+
+	/**
+	 * @return chunkReadPreference
+	 */
+	public ReadPreference getChunkReadPreference() {
+		return chunkReadPreference;
+	}
+
+	/**
+	 * @return objectIndexReadPreference
+	 */
+	public ReadPreference getObjectIndexReadPreference() {
+		return objectIndexReadPreference;
+	}
+
+	/**
+	 * @return objectIndexFilter
+	 */
+	public ObjectIndexFilter getObjectIndexFilter() {
+		return objectIndexFilter;
+	}
+
+	/**
+	 * @return objectIndexValueArray
+	 */
+	public boolean isObjectIndexValueArray() {
+		return objectIndexValueArray;
+	}
+
+	/**
+	 * @return objectIndexBatchSize
+	 */
+	public int getObjectIndexBatchSize() {
+		return objectIndexBatchSize;
+	}
+
+	/**
+	 * @return objectIndexCursorBatchSize
+	 */
+	public int getObjectIndexCursorBatchSize() {
+		return objectIndexCursorBatchSize;
+	}
+
+	/**
+	 * @return repositoryKeyBlockSize
+	 */
+	public int getRepositoryKeyBlockSize() {
+		return repositoryKeyBlockSize;
+	}
+
+	/**
+	 * @return executor
+	 */
+	public Executor getExecutor() {
+		return executor;
+	}
+
+	/**
+	 * @return asyncClient
+	 */
+	public AsyncMongoClient getAsyncClient() {
+		return asyncClient;
+	}
+
+	/**
+	 * @return asyncSecondaryClient
+	 */
+	public AsyncMongoClient getAsyncSecondaryClient() {
+		return asyncSecondaryClient;
+	}
+
+	/**
+	 * @return singleFlight
+	 */
+	public boolean isSingleFlight() {
+		return singleFlight;
+	}
+
+	/**
+	 * @return coalesceExecutor
+	 */
+	public ScheduledExecutorService getCoalesceExecutor() {
+		return coalesceExecutor;
+	}
+
+	/**
+	 * @return coalesceWindow
+	 */
+	public long getCoalesceWindow() {
+		return coalesceWindow;
+	}
+
+	/**
+	 * @return lookupParallelism
+	 */
+	public int getLookupParallelism() {
+		return lookupParallelism;
+	}
+
+	/**
+	 * @return keyCodec
+	 */
+	public KeyCodec getKeyCodec() {
+		return keyCodec;
+	}
+
+	/**
+	 * @return chunkWriteConcern
+	 */
+	public WriteConcern getChunkWriteConcern() {
+		return chunkWriteConcern;
+	}
+
+	/**
+	 * @return objectIndexWriteConcern
+	 */
+	public WriteConcern getObjectIndexWriteConcern() {
+		return objectIndexWriteConcern;
+	}
+
+	/**
+	 * @return repositoryWriteConcern
+	 */
+	public WriteConcern getRepositoryWriteConcern() {
+		return repositoryWriteConcern;
+	}
+
+	/**
+	 * @return refWriteConcern
+	 */
+	public WriteConcern getRefWriteConcern() {
+		return refWriteConcern;
+	}
+
+	/**
+	 * @return packedRefShards
+	 */
+	public int getPackedRefShards() {
+		return packedRefShards;
+	}
+
+	/**
+	 * @return refCacheMaxAge
+	 */
+	public long getRefCacheMaxAge() {
+		return refCacheMaxAge;
+	}
+
+	/**
+	 * @return refUpdateFeed
+	 */
+	public RefUpdateFeed getRefUpdateFeed() {
+		return refUpdateFeed;
+	}
+
+	/**
+	 * @return ensureIndexes
+	 */
+	public boolean isEnsureIndexes() {
+		return ensureIndexes;
+	}
+
+	/**
+	 * @return queryPlanCheck
+	 */
+	public MongoIndexManager.PlanCheck getQueryPlanCheck() {
+		return queryPlanCheck;
+	}
+
+	/**
+	 * Build database
+	 * 
+	 * @return database
+	 */
+	public MongoDatabase build() {
+		return new MongoDatabase(this);
+	}
+}
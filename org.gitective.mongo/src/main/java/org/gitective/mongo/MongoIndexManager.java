@@ -0,0 +1,303 @@
+/*
+ * Copyright (c) 2011 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.gitective.mongo;
+
+import static org.gitective.mongo.ICollectionConstants.REFS;
+import static org.gitective.mongo.ICollectionConstants.REPO_INDEX;
+import static org.gitective.mongo.IPropertyConstants.NAME;
+import static org.gitective.mongo.IPropertyConstants.REPO;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.WriteConcern;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Manager of the secondary indexes required by the MongoDB tables
+ * <p>
+ * Collections keyed only by document id need no further indexes. The ref
+ * collection is queried by repository and name and the repository index
+ * collection is queried by name, so both need indexes to avoid scanning the
+ * collection on every lookup.
+ * <p>
+ * The unique ref index is also what makes creating a ref fail when it already
+ * exists, so it is built in the foreground and checked to exist afterwards.
+ * Other indexes are built in the background and queries relying on them are
+ * not explained until a later start since they are not used while building.
+ */
+public class MongoIndexManager {
+
+	/**
+	 * Check applied to the query plans of frequently run queries
+	 */
+	public static enum PlanCheck {
+
+		/**
+		 * Do not explain queries
+		 */
+		NONE,
+
+		/**
+		 * Log a warning for each query not using an index
+		 */
+		WARN,
+
+		/**
+		 * Throw an {@link IllegalStateException} if any query does not use an
+		 * index
+		 */
+		FAIL
+	}
+
+	private static final Logger LOG = Logger.getLogger(MongoIndexManager.class
+			.getName());
+
+	/**
+	 * Index required by a collection
+	 */
+	private static class Index {
+
+		final String collection;
+
+		final DBObject keys;
+
+		final boolean unique;
+
+		final boolean background;
+
+		Index(String collection, DBObject keys, boolean unique,
+				boolean background) {
+			this.collection = collection;
+			this.keys = keys;
+			this.unique = unique;
+			this.background = background;
+		}
+	}
+
+	/**
+	 * Query run frequently against a collection
+	 */
+	private static class QueryShape {
+
+		final String collection;
+
+		final DBObject query;
+
+		final Index index;
+
+		QueryShape(String collection, DBObject query, Index index) {
+			this.collection = collection;
+			this.query = query;
+			this.index = index;
+		}
+	}
+
+	private final DB db;
+
+	private final List<Index> indexes = new ArrayList<Index>();
+
+	private final List<QueryShape> queries = new ArrayList<QueryShape>();
+
+	private final List<Index> building = new ArrayList<Index>();
+
+	/**
+	 * Create manager of the indexes required by the tables in the given
+	 * database
+	 * 
+	 * @param db
+	 */
+	public MongoIndexManager(DB db) {
+		this.db = db;
+
+		Index refs = new Index(REFS, MongoRefTable.INDEX_KEYS, true, false);
+		indexes.add(refs);
+		queries.add(new QueryShape(REFS, new BasicDBObject(REPO, 0), refs));
+		queries.add(new QueryShape(REFS, new BasicDBObject(REPO, 0).append(
+				NAME, ""), refs));
+
+		Index repoIndex = new Index(REPO_INDEX, new BasicDBObject(NAME, 1),
+				true, true);
+		indexes.add(repoIndex);
+		queries.add(new QueryShape(REPO_INDEX, new BasicDBObject(NAME, ""),
+				repoIndex));
+	}
+
+	private static boolean isKeys(Object indexKeys, DBObject keys) {
+		if (!(indexKeys instanceof DBObject))
+			return false;
+		DBObject dbo = (DBObject) indexKeys;
+		if (!new ArrayList<String>(dbo.keySet()).equals(new ArrayList<String>(
+				keys.keySet())))
+			return false;
+		// Directions may be stored as doubles by other drivers
+		for (String key : keys.keySet()) {
+			Object direction = dbo.get(key);
+			if (!(direction instanceof Number)
+					|| ((Number) direction).intValue() != ((Number) keys
+							.get(key)).intValue())
+				return false;
+		}
+		return true;
+	}
+
+	private static boolean isTrue(Object value) {
+		if (value instanceof Boolean)
+			return ((Boolean) value).booleanValue();
+		return value instanceof Number && ((Number) value).intValue() != 0;
+	}
+
+	private static boolean hasIndex(DBCollection collection, DBObject keys,
+			boolean unique) {
+		for (DBObject index : collection.getIndexInfo())
+			if (isKeys(index.get("key"), keys)
+					&& (!unique || isTrue(index.get("unique"))))
+				return true;
+		return false;
+	}
+
+	private static void createIndex(DBCollection collection, DBObject keys,
+			DBObject options) {
+		DB db = collection.getDB();
+		db.requestStart();
+		try {
+			collection.createIndex(keys, options);
+			db.getLastError(WriteConcern.SAFE).throwOnError();
+		} finally {
+			db.requestDone();
+		}
+	}
+
+	/**
+	 * Create unique index in the foreground if missing and check that it
+	 * exists
+	 * 
+	 * @param collection
+	 * @param keys
+	 * @throws IllegalStateException
+	 *             if the collection has no unique index on the keys after
+	 *             creating it, e.g. since it contains duplicates
+	 */
+	static void ensureUniqueIndex(DBCollection collection, DBObject keys) {
+		if (hasIndex(collection, keys, true))
+			return;
+		createIndex(collection, keys, new BasicDBObject("unique", true));
+		if (!hasIndex(collection, keys, true))
+			throw new IllegalStateException("Collection "
+					+ collection.getFullName() + " has no unique index on "
+					+ keys);
+	}
+
+	/**
+	 * Create all missing indexes
+	 * <p>
+	 * The unique ref index is built in the foreground. Other indexes are
+	 * built in the background so existing collections remain available while
+	 * they are indexed and are sparse when unique since documents may have the
+	 * indexed fields unset.
+	 * 
+	 * @return this manager
+	 * @throws IllegalStateException
+	 *             if the unique ref index could not be created
+	 */
+	public MongoIndexManager ensureIndexes() {
+		for (Index index : indexes) {
+			DBCollection collection = db.getCollection(index.collection);
+			if (hasIndex(collection, index.keys, index.unique))
+				continue;
+			if (!index.background) {
+				ensureUniqueIndex(collection, index.keys);
+				continue;
+			}
+			BasicDBObject options = new BasicDBObject("background", true);
+			if (index.unique)
+				options.append("unique", true).append("sparse", true);
+			createIndex(collection, index.keys, options);
+			building.add(index);
+		}
+		return this;
+	}
+
+	private static boolean isCollectionScan(Object plan) {
+		if (plan instanceof List<?>) {
+			for (Object child : (List<?>) plan)
+				if (isCollectionScan(child))
+					return true;
+			return false;
+		}
+		if (!(plan instanceof DBObject))
+			return false;
+		DBObject object = (DBObject) plan;
+		Object cursor = object.get("cursor");
+		if (cursor instanceof String
+				&& ((String) cursor).startsWith("BasicCursor"))
+			return true;
+		if ("COLLSCAN".equals(object.get("stage")))
+			return true;
+		for (String key : object.keySet())
+			if (!"rejectedPlans".equals(key) && !"allPlans".equals(key)
+					&& isCollectionScan(object.get(key)))
+				return true;
+		return false;
+	}
+
+	/**
+	 * Explain the frequently run queries and check that each uses an index
+	 * <p>
+	 * Queries relying on an index this manager started building in the
+	 * background are skipped.
+	 * 
+	 * @param check
+	 * @return list of descriptions of queries not using an index
+	 * @throws IllegalStateException
+	 *             if check is {@link PlanCheck#FAIL} and any query does not
+	 *             use an index
+	 */
+	public List<String> checkQueryPlans(PlanCheck check) {
+		List<String> unindexed = new ArrayList<String>();
+		if (check == PlanCheck.NONE)
+			return unindexed;
+		for (QueryShape shape : queries) {
+			DBCollection collection = db.getCollection(shape.collection);
+			if (building.contains(shape.index)) {
+				LOG.info("Query not explained while its index is built: "
+						+ collection.getFullName() + " " + shape.query);
+				continue;
+			}
+			DBObject plan = collection.find(shape.query).explain();
+			if (isCollectionScan(plan))
+				unindexed.add(collection.getFullName() + " " + shape.query);
+		}
+		if (unindexed.isEmpty())
+			return unindexed;
+		if (check == PlanCheck.FAIL)
+			throw new IllegalStateException("Queries not using an index: "
+					+ unindexed);
+		for (String query : unindexed)
+			LOG.warning("Query not using an index: " + query);
+		return unindexed;
+	}
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (c) 2011 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.gitective.mongo;
+
+import static org.gitective.mongo.ICollectionConstants.CHUNKS;
+import static org.gitective.mongo.ICollectionConstants.CHUNK_META;
+import static org.gitective.mongo.ICollectionConstants.OBJECTS;
+import static org.gitective.mongo.IPropertyConstants.DATA;
+import static org.gitective.mongo.IPropertyConstants.ID;
+import static org.gitective.mongo.IPropertyConstants.NAME;
+import static org.gitective.mongo.IPropertyConstants.REPO;
+import static org.gitective.mongo.IPropertyConstants.VALUES;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBEncoderFactory;
+import com.mongodb.DBObject;
+import com.mongodb.WriteConcern;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+
+import org.eclipse.jgit.generated.storage.dht.proto.GitStore;
+import org.eclipse.jgit.generated.storage.dht.proto.GitStore.RefData;
+import org.eclipse.jgit.storage.dht.ChunkKey;
+import org.eclipse.jgit.storage.dht.DhtException;
+import org.eclipse.jgit.storage.dht.RefKey;
+import org.eclipse.jgit.storage.dht.RepositoryKey;
+
+/**
+ * Conversion of existing collections to a different document layout
+ * <p>
+ * Conversions are not atomic and should be run while no other process is
+ * writing to the database. Each converted document is written before the
+ * original is removed so an interrupted conversion can be run again.
+ */
+public class MongoMigration {
+
+	private static boolean isSameId(Object id1, Object id2) {
+		if (id1 instanceof byte[] && id2 instanceof byte[])
+			return Arrays.equals((byte[]) id1, (byte[]) id2);
+		return id1.equals(id2);
+	}
+
+	/**
+	 * Convert the ids of all documents in collection to the given codec
+	 * 
+	 * @param collection
+	 * @param codec
+	 * @return number of documents converted
+	 */
+	public static int convertKeys(DBCollection collection, KeyCodec codec) {
+		return convertKeys(collection, codec, WriteConcern.SAFE);
+	}
+
+	/**
+	 * Convert the ids of all documents in collection to the given codec
+	 * <p>
+	 * The original document is only removed once the write of the converted
+	 * document has been acknowledged.
+	 * 
+	 * @param collection
+	 * @param codec
+	 * @param concern
+	 *            must wait for acknowledgement of the write
+	 * @return number of documents converted
+	 */
+	public static int convertKeys(DBCollection collection, KeyCodec codec,
+			WriteConcern concern) {
+		if (!concern.callGetLastError())
+			throw new IllegalArgumentException(
+					"Converted documents must be acknowledged");
+		int converted = 0;
+		DBCursor cursor = collection.find();
+		try {
+			cursor.snapshot();
+			while (cursor.hasNext()) {
+				DBObject document = cursor.next();
+				Object id = document.get(ID);
+				Object encoded = codec.encode(KeyCodec.decode(id));
+				if (isSameId(id, encoded))
+					continue;
+				document.put(ID, encoded);
+				collection.save(document, concern).getLastError()
+						.throwOnError();
+				collection.remove(new IdObject(id), concern).getLastError()
+						.throwOnError();
+				converted++;
+			}
+		} finally {
+			cursor.close();
+		}
+		return converted;
+	}
+
+	/**
+	 * Convert the ids of all chunk and object index documents in database to
+	 * the given codec
+	 * 
+	 * @param db
+	 * @param codec
+	 * @return number of documents converted
+	 */
+	public static int convertKeys(DB db, KeyCodec codec) {
+		return convertKeys(db, codec, WriteConcern.SAFE);
+	}
+
+	/**
+	 * Convert the ids of all chunk and object index documents in database to
+	 * the given codec
+	 * 
+	 * @param db
+	 * @param codec
+	 * @param concern
+	 *            must wait for acknowledgement of the write
+	 * @return number of documents converted
+	 */
+	public static int convertKeys(DB db, KeyCodec codec, WriteConcern concern) {
+		int converted = convertKeys(db.getCollection(CHUNKS), codec, concern);
+		if (db.collectionExists(CHUNK_META))
+			converted += convertKeys(db.getCollection(CHUNK_META), codec,
+					concern);
+		converted += convertKeys(db.getCollection(OBJECTS), codec, concern);
+		return converted;
+	}
+
+	/**
+	 * Convert object index documents storing locations in a document keyed by
+	 * escaped chunk key to store them as an array of chunk and info entries
+	 * 
+	 * @param collection
+	 * @return number of documents converted
+	 * @throws DhtException
+	 */
+	public static int convertObjectValues(DBCollection collection)
+			throws DhtException {
+		DBEncoderFactory encoder = collection.getDBEncoderFactory();
+		collection.setDBEncoderFactory(MessageEncoder.FACTORY);
+		int converted = 0;
+		DBCursor cursor = collection.find();
+		try {
+			cursor.snapshot();
+			while (cursor.hasNext()) {
+				DBObject document = cursor.next();
+				Object values = document.get(VALUES);
+				if (!(values instanceof DBObject) || values instanceof List)
+					continue;
+				DBObject locations = (DBObject) values;
+				BasicDBList entries = new BasicDBList();
+				for (String key : locations.keySet()) {
+					ChunkKey chunk = ChunkKey.fromString(key.replace(':', '.'));
+					byte[] info = MongoUtils.getBytes(locations, key);
+					entries.add(MongoObjectIndexTable.createValue(chunk,
+							GitStore.ObjectInfo.parseFrom(info)));
+				}
+				DBObject query = new BasicDBObject(ID, document.get(ID))
+						.append(VALUES, values);
+				collection.update(query, MongoUtils.set(VALUES, entries));
+				converted++;
+			}
+		} catch (InvalidProtocolBufferException e) {
+			throw new DhtException(e);
+		} finally {
+			cursor.close();
+			collection.setDBEncoderFactory(encoder);
+		}
+		return converted;
+	}
+
+	/**
+	 * Copy refs stored one per document into a packed ref table
+	 * <p>
+	 * Refs already present in the packed table are left unchanged.
+	 * 
+	 * @param refs
+	 * @param table
+	 * @return number of refs copied
+	 * @throws DhtException
+	 */
+	public static int packRefs(DBCollection refs, MongoPackedRefTable table)
+			throws DhtException {
+		int copied = 0;
+		DBCursor cursor = refs.find();
+		try {
+			while (cursor.hasNext()) {
+				DBObject document = cursor.next();
+				RefKey key = RefKey.create(
+						RepositoryKey.fromInt(MongoUtils.getInt(document, REPO)),
+						MongoUtils.getString(document, NAME));
+				RefData data = RefData.parseFrom(MongoUtils.getBytes(document,
+						DATA));
+				if (table.compareAndPut(key, null, data))
+					copied++;
+			}
+		} catch (InvalidProtocolBufferException e) {
+			throw new DhtException(e);
+		} catch (TimeoutException e) {
+			throw new DhtException(e);
+		} finally {
+			cursor.close();
+		}
+		return copied;
+	}
+}
@@ -21,16 +21,28 @@
  */
 package org.gitective.mongo;
 
+import static org.gitective.mongo.IPropertyConstants.CHUNK;
+import static org.gitective.mongo.IPropertyConstants.ID;
+import static org.gitective.mongo.IPropertyConstants.INFO;
 import static org.gitective.mongo.IPropertyConstants.VALUES;
 
 import com.google.protobuf.InvalidProtocolBufferException;
+import com.mongodb.BasicDBObject;
 import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
+import com.mongodb.ReadPreference;
+import com.mongodb.WriteConcern;
 
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
 
 import org.eclipse.jgit.generated.storage.dht.proto.GitStore;
@@ -48,49 +60,371 @@ import org.eclipse.jgit.storage.dht.spi.WriteBuffer;
  */
 public class MongoObjectIndexTable implements ObjectIndexTable {
 
+	/**
+	 * Default maximum number of keys sent in a single query
+	 */
+	public static final int DEFAULT_BATCH_SIZE = 512;
+
+	/**
+	 * Default number of documents returned per cursor batch
+	 */
+	public static final int DEFAULT_CURSOR_BATCH_SIZE = 256;
+
 	private static final String VALUES_PREFIX = VALUES + ".";
 
+	static final DBObject VALUES_FIELDS = new BasicDBObject(VALUES, 1);
+
 	private final DBCollection collection;
 
+	private int batchSize = DEFAULT_BATCH_SIZE;
+
+	private int cursorBatchSize = DEFAULT_CURSOR_BATCH_SIZE;
+
+	private ObjectIndexFilter filter;
+
+	private ReadPreference readPreference;
+
+	private WriteConcern writeConcern;
+
+	private KeyCodec keyCodec = KeyCodec.STRING;
+
+	private boolean valueArray;
+
 	/**
 	 * 
 	 * @param collection
 	 */
 	public MongoObjectIndexTable(DBCollection collection) {
 		this.collection = collection;
+		collection.setDBEncoderFactory(MessageEncoder.FACTORY);
 	}
 
-	public void get(Context options, Set<ObjectIndexKey> objects,
-			AsyncCallback<Map<ObjectIndexKey, Collection<ObjectInfo>>> callback) {
-		Map<ObjectIndexKey, Collection<ObjectInfo>> out = new HashMap<ObjectIndexKey, Collection<ObjectInfo>>();
-		for (ObjectIndexKey objId : objects) {
-			DBObject fetch = collection.findOne(new IdObject(objId.asString()));
-			if (fetch == null)
-				continue;
-			Object values = fetch.get(VALUES);
-			if (values instanceof DBObject) {
-				DBObject dbo = (DBObject) values;
+	/**
+	 * @return collection of object index documents
+	 */
+	public DBCollection getCollection() {
+		return collection;
+	}
+
+	/**
+	 * @return maximum number of keys sent in a single query
+	 */
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * @return number of documents returned per cursor batch
+	 */
+	public int getCursorBatchSize() {
+		return cursorBatchSize;
+	}
+
+	/**
+	 * @return read preference of lookups, may be null to use collection
+	 *         default
+	 */
+	public ReadPreference getReadPreference() {
+		return readPreference;
+	}
+
+	/**
+	 * Set maximum number of keys sent in a single query
+	 * 
+	 * @param batchSize
+	 * @return this table
+	 */
+	public MongoObjectIndexTable setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+		return this;
+	}
+
+	/**
+	 * Set number of documents returned per cursor batch
+	 * 
+	 * @param cursorBatchSize
+	 * @return this table
+	 */
+	public MongoObjectIndexTable setCursorBatchSize(int cursorBatchSize) {
+		this.cursorBatchSize = cursorBatchSize;
+		return this;
+	}
+
+	/**
+	 * Set codec of document ids
+	 * <p>
+	 * Documents are read regardless of the codec that wrote them but only
+	 * found by queries using the same codec, existing collections must be
+	 * converted with {@link MongoMigration} when changing codecs
+	 * 
+	 * @param keyCodec
+	 * @return this table
+	 */
+	public MongoObjectIndexTable setKeyCodec(KeyCodec keyCodec) {
+		this.keyCodec = keyCodec;
+		return this;
+	}
+
+	/**
+	 * @return write concern of object index writes, may be null to use collection
+	 *         default
+	 */
+	public WriteConcern getWriteConcern() {
+		return writeConcern;
+	}
+
+	/**
+	 * Set write concern of object index writes
+	 * 
+	 * @param writeConcern
+	 *            may be null to use collection default
+	 * @return this table
+	 */
+	public MongoObjectIndexTable setWriteConcern(WriteConcern writeConcern) {
+		this.writeConcern = writeConcern;
+		return this;
+	}
+
+	/**
+	 * Set read preference of object index queries
+	 * <p>
+	 * Objects not found when reading from secondaries are looked up again on
+	 * the primary unless the lookup tolerates missing results
+	 * 
+	 * @param readPreference
+	 *            may be null to use collection default
+	 * @return this table
+	 */
+	public MongoObjectIndexTable setReadPreference(
+			ReadPreference readPreference) {
+		this.readPreference = readPreference;
+		return this;
+	}
+
+	/**
+	 * Set whether object locations are written as an array of chunk and info
+	 * entries instead of a document keyed by escaped chunk key
+	 * <p>
+	 * Both layouts are read, existing collections must be converted with
+	 * {@link MongoMigration} before writing with the array layout
+	 * 
+	 * @param valueArray
+	 * @return this table
+	 */
+	public MongoObjectIndexTable setValueArray(boolean valueArray) {
+		this.valueArray = valueArray;
+		return this;
+	}
+
+	/**
+	 * Set filter used to skip lookups of objects not in the index
+	 * 
+	 * @param filter
+	 *            may be null to look up all objects
+	 * @return this table
+	 */
+	public MongoObjectIndexTable setFilter(ObjectIndexFilter filter) {
+		this.filter = filter;
+		return this;
+	}
+
+	/**
+	 * Load filter for repository from the ids of all its objects
+	 * 
+	 * @param repository
+	 */
+	protected void loadFilter(String repository) {
+		DBObject range = keyCodec.createRange(repository);
+		final DBCursor cursor = collection.find(new BasicDBObject(ID, range),
+				new BasicDBObject(ID, 1));
+		try {
+			cursor.batchSize(4096);
+			filter.load(repository, new Iterator<String>() {
+
+				public boolean hasNext() {
+					return cursor.hasNext();
+				}
+
+				public String next() {
+					return MongoUtils.getKey(cursor.next(), ID);
+				}
+
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			});
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Get keys that might be present in the object index
+	 * 
+	 * @param objects
+	 * @return keys not definitely missing according to the filter
+	 */
+	protected Set<ObjectIndexKey> filter(Set<ObjectIndexKey> objects) {
+		Set<ObjectIndexKey> filtered = new HashSet<ObjectIndexKey>();
+		Set<String> checked = new HashSet<String>();
+		for (ObjectIndexKey key : objects) {
+			String repository = ObjectIndexFilter.getRepository(key
+					.asString());
+			if (checked.add(repository) && filter.needsLoad(repository))
+				loadFilter(repository);
+			if (filter.mightContain(key))
+				filtered.add(key);
+		}
+		return filtered;
+	}
+
+	/**
+	 * Create query matching objects with any of the given keys
+	 * 
+	 * @param keys
+	 * @return query
+	 */
+	protected DBObject createQuery(Collection<ObjectIndexKey> keys) {
+		List<Object> ids = new ArrayList<Object>(keys.size());
+		for (ObjectIndexKey key : keys)
+			ids.add(keyCodec.encode(key));
+		return MongoUtils.in(ID, ids);
+	}
+
+	/**
+	 * Add object info from the values of the given object document
+	 * 
+	 * @param fetch
+	 * @param chunks
+	 * @throws InvalidProtocolBufferException
+	 */
+	protected void addValues(DBObject fetch, Collection<ObjectInfo> chunks)
+			throws InvalidProtocolBufferException {
+		Object values = fetch.get(VALUES);
+		if (values instanceof List) {
+			// Documents written before entries were replaced may hold several
+			// entries of a chunk, the last one is kept
+			Map<String, byte[]> latest = new LinkedHashMap<String, byte[]>();
+			for (Object entry : (List<?>) values) {
+				if (!(entry instanceof DBObject))
+					continue;
+				DBObject dbo = (DBObject) entry;
+				byte[] value = MongoUtils.getBytes(dbo, INFO);
+				if (value == null)
+					continue;
+				String chunk = MongoUtils.getKey(dbo, CHUNK);
+				latest.remove(chunk);
+				latest.put(chunk, value);
+			}
+			for (Entry<String, byte[]> entry : latest.entrySet())
+				chunks.add(new ObjectInfo(ChunkKey.fromString(entry.getKey()),
+						0, GitStore.ObjectInfo.parseFrom(entry.getValue())));
+			return;
+		}
+		if (!(values instanceof DBObject))
+			return;
+		DBObject dbo = (DBObject) values;
+		for (String key : dbo.keySet()) {
+			byte[] value = MongoUtils.getBytes(dbo, key);
+			key = unescapeKey(key);
+			chunks.add(new ObjectInfo(ChunkKey.fromString(key), 0,
+					GitStore.ObjectInfo.parseFrom(value)));
+		}
+	}
+
+	/**
+	 * Add object info of objects with given keys to map
+	 * 
+	 * @param keys
+	 * @param preference
+	 *            may be null to use collection default
+	 * @param out
+	 * @throws InvalidProtocolBufferException
+	 */
+	protected void get(Collection<ObjectIndexKey> keys,
+			ReadPreference preference,
+			Map<ObjectIndexKey, Collection<ObjectInfo>> out)
+			throws InvalidProtocolBufferException {
+		DBCursor cursor = collection.find(createQuery(keys), VALUES_FIELDS);
+		try {
+			if (preference != null)
+				cursor.setReadPreference(preference);
+			cursor.batchSize(cursorBatchSize);
+			while (cursor.hasNext()) {
+				DBObject fetch = cursor.next();
+				if (!(fetch.get(VALUES) instanceof DBObject))
+					continue;
+				ObjectIndexKey objId = ObjectIndexKey.fromString(MongoUtils.getKey(
+						fetch, ID));
 				Collection<ObjectInfo> chunks = out.get(objId);
 				if (chunks == null) {
 					chunks = new ArrayList<ObjectInfo>(4);
 					out.put(objId, chunks);
 				}
-				for (String key : dbo.keySet()) {
-					byte[] value = MongoUtils.getBytes(dbo, key);
-					key = unescapeKey(key);
-					try {
-						chunks.add(new ObjectInfo(ChunkKey.fromString(key), 0,
-								GitStore.ObjectInfo.parseFrom(value)));
-					} catch (InvalidProtocolBufferException e) {
-						callback.onFailure(new DhtException(e));
-						return;
-					}
-				}
+				addValues(fetch, chunks);
 			}
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Get keys to look up, excluding keys the filter reports as missing when
+	 * the filter applies to the given context
+	 * 
+	 * @param options
+	 * @param objects
+	 * @return keys to look up
+	 */
+	protected Set<ObjectIndexKey> getLookupKeys(Context options,
+			Set<ObjectIndexKey> objects) {
+		if (filter != null
+				&& (options == Context.FAST_MISSING_OK || filter
+						.isAuthoritative()))
+			return filter(objects);
+		return objects;
+	}
+
+	public void get(Context options, Set<ObjectIndexKey> objects,
+			AsyncCallback<Map<ObjectIndexKey, Collection<ObjectInfo>>> callback) {
+		Map<ObjectIndexKey, Collection<ObjectInfo>> out = new HashMap<ObjectIndexKey, Collection<ObjectInfo>>();
+		objects = getLookupKeys(options, objects);
+		boolean fallback = readPreference != null
+				&& readPreference != ReadPreference.PRIMARY
+				&& options != Context.FAST_MISSING_OK;
+		try {
+			for (List<ObjectIndexKey> batch : MongoUtils.partition(objects,
+					batchSize)) {
+				get(batch, readPreference, out);
+				if (!fallback)
+					continue;
+				List<ObjectIndexKey> missing = new ArrayList<ObjectIndexKey>();
+				for (ObjectIndexKey key : batch)
+					if (!out.containsKey(key))
+						missing.add(key);
+				if (!missing.isEmpty())
+					get(missing, ReadPreference.PRIMARY, out);
+			}
+		} catch (InvalidProtocolBufferException e) {
+			callback.onFailure(new DhtException(e));
+			return;
 		}
 		callback.onSuccess(out);
 	}
 
+	/**
+	 * Create array entry of object stored in chunk
+	 * 
+	 * @param chunk
+	 * @param info
+	 * @return entry
+	 */
+	protected static DBObject createValue(ChunkKey chunk,
+			GitStore.ObjectInfo info) {
+		return new BasicDBObject(CHUNK, KeyCodec.BINARY.encode(chunk)).append(
+				INFO, info);
+	}
+
 	private String escapeKey(String key) {
 		return key.replace('.', ':');
 	}
@@ -99,20 +433,54 @@ public class MongoObjectIndexTable implements ObjectIndexTable {
 		return key.replace(':', '.');
 	}
 
+	/**
+	 * Update/insert document matching query using given write buffer
+	 * 
+	 * @param query
+	 * @param update
+	 * @param buffer
+	 * @throws DhtException
+	 */
+	protected void upsert(DBObject query, DBObject update, WriteBuffer buffer)
+			throws DhtException {
+		if (buffer instanceof MongoWriteBuffer)
+			((MongoWriteBuffer) buffer).upsert(collection, writeConcern, query,
+					update);
+		else if (writeConcern != null)
+			collection.update(query, update, true, false, writeConcern);
+		else
+			collection.update(query, update, true, false);
+	}
+
 	public void add(ObjectIndexKey objId, ObjectInfo info, WriteBuffer buffer)
 			throws DhtException {
-		IdObject id = new IdObject(objId.asString());
-		String key = escapeKey(info.getChunkKey().asString());
-		DBObject object = MongoUtils.set(VALUES_PREFIX + key, info.getData()
-				.toByteArray());
-		collection.update(id, object, true, false);
+		IdObject id = new IdObject(keyCodec.encode(objId));
+		if (valueArray) {
+			// Replace the entry of the chunk, adding to the set would keep an
+			// older entry equal to the new info after the chunk's info changed
+			ChunkKey chunk = info.getChunkKey();
+			upsert(id, MongoUtils.pull(VALUES, new BasicDBObject(CHUNK,
+					KeyCodec.BINARY.encode(chunk))), buffer);
+			upsert(id, MongoUtils.push(VALUES,
+					createValue(chunk, info.getData())), buffer);
+		} else {
+			String key = escapeKey(info.getChunkKey().asString());
+			upsert(id, MongoUtils.set(VALUES_PREFIX + key, info.getData()),
+					buffer);
+		}
+		if (filter != null)
+			filter.add(objId);
 	}
 
 	public void remove(ObjectIndexKey objId, ChunkKey chunk, WriteBuffer buffer)
 			throws DhtException {
-		IdObject id = new IdObject(objId.asString());
-		String key = escapeKey(chunk.asString());
-		collection.update(id, MongoUtils.unset(VALUES_PREFIX + key), true,
-				false);
+		IdObject id = new IdObject(keyCodec.encode(objId));
+		if (valueArray)
+			upsert(id, MongoUtils.pull(VALUES, new BasicDBObject(CHUNK,
+					KeyCodec.BINARY.encode(chunk))), buffer);
+		else {
+			String key = escapeKey(chunk.asString());
+			upsert(id, MongoUtils.unset(VALUES_PREFIX + key), buffer);
+		}
 	}
 }
@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2011 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.gitective.mongo;
+
+import static org.gitective.mongo.IPropertyConstants.ID;
+import static org.gitective.mongo.IPropertyConstants.REFS;
+import static org.gitective.mongo.IPropertyConstants.SHARDS;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.mongodb.WriteConcern;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
+
+import org.eclipse.jgit.generated.storage.dht.proto.GitStore.RefData;
+import org.eclipse.jgit.storage.dht.DhtException;
+import org.eclipse.jgit.storage.dht.RefKey;
+import org.eclipse.jgit.storage.dht.RepositoryKey;
+import org.eclipse.jgit.storage.dht.spi.Context;
+import org.eclipse.jgit.storage.dht.spi.RefTable;
+
+/**
+ * MongoDB-backed ref table storing all refs of a repository in a single
+ * document
+ * <p>
+ * Refs are stored as binary values of a sub-document keyed by ref name with
+ * '.' escaped to ':'. Repositories with very many refs can spread their refs
+ * over a fixed number of documents by ref name hash, reading all refs of a
+ * repository is a lookup of that many ids. Compare-and-swap of a ref is a
+ * single update conditional on the current value of that ref.
+ * <p>
+ * The number of documents per repository is recorded in the collection the
+ * first time a table is created on it, creating a table with a different
+ * number fails since refs would be looked up in the wrong documents.
+ */
+public class MongoPackedRefTable implements RefTable {
+
+	/**
+	 * Maximum number of documents per repository
+	 */
+	public static final int MAX_SHARDS = 256;
+
+	private static final String REFS_PREFIX = REFS + ".";
+
+	private static final DBObject ID_FIELDS = new BasicDBObject(ID, 1);
+
+	/**
+	 * Id of the document recording the number of documents per repository
+	 */
+	private static final String SHARDS_ID = SHARDS;
+
+	private final DBCollection collection;
+
+	private final int shards;
+
+	private WriteConcern writeConcern = WriteConcern.SAFE;
+
+	/**
+	 * Create table storing refs of a repository in a single document
+	 * 
+	 * @param collection
+	 */
+	public MongoPackedRefTable(DBCollection collection) {
+		this(collection, 1);
+	}
+
+	/**
+	 * @param collection
+	 * @param shards
+	 *            number of documents per repository, refs are spread across
+	 *            them by name
+	 */
+	public MongoPackedRefTable(DBCollection collection, int shards) {
+		if (shards < 1 || shards > MAX_SHARDS)
+			throw new IllegalArgumentException("Shards must be between 1 and "
+					+ MAX_SHARDS);
+		this.collection = collection;
+		this.shards = shards;
+		checkShards();
+	}
+
+	private void checkShards() {
+		IdObject id = new IdObject(SHARDS_ID);
+		DBObject stored = collection.findOne(id);
+		if (stored == null)
+			try {
+				collection.insert(new IdObject(SHARDS_ID).append(SHARDS,
+						shards), WriteConcern.SAFE);
+				return;
+			} catch (MongoException.DuplicateKey e) {
+				stored = collection.findOne(id);
+			}
+		int storedShards = MongoUtils.getInt(stored, SHARDS);
+		if (storedShards != shards)
+			throw new IllegalStateException("Collection "
+					+ collection.getFullName() + " stores refs in "
+					+ storedShards + " documents per repository instead of "
+					+ shards);
+	}
+
+	/**
+	 * Set write concern of ref updates
+	 * 
+	 * @param writeConcern
+	 *            must wait for acknowledgement of the write
+	 * @return this table
+	 */
+	public MongoPackedRefTable setWriteConcern(WriteConcern writeConcern) {
+		if (!writeConcern.callGetLastError())
+			throw new IllegalArgumentException(
+					"Ref updates must be acknowledged");
+		this.writeConcern = writeConcern;
+		return this;
+	}
+
+	private long getId(RepositoryKey repository, int shard) {
+		return ((long) repository.asInt()) << 8 | shard;
+	}
+
+	private long getId(RefKey key) {
+		int shard = (key.getName().hashCode() & Integer.MAX_VALUE) % shards;
+		return getId(key.getRepositoryKey(), shard);
+	}
+
+	private String getField(RefKey key) {
+		return REFS_PREFIX + key.getName().replace('.', ':');
+	}
+
+	private DBObject createQuery(RefKey key, Object condition) {
+		return new BasicDBObject(ID, getId(key)).append(getField(key),
+				condition);
+	}
+
+	public Map<RefKey, RefData> getAll(Context options, RepositoryKey repository)
+			throws DhtException, TimeoutException {
+		List<Long> ids = new ArrayList<Long>(shards);
+		for (int shard = 0; shard < shards; shard++)
+			ids.add(Long.valueOf(getId(repository, shard)));
+		Map<RefKey, RefData> out = new HashMap<RefKey, RefData>();
+		DBCursor cursor = collection.find(MongoUtils.in(ID, ids));
+		try {
+			while (cursor.hasNext()) {
+				Object refs = cursor.next().get(REFS);
+				if (!(refs instanceof DBObject))
+					continue;
+				DBObject dbo = (DBObject) refs;
+				for (String name : dbo.keySet()) {
+					byte[] data = MongoUtils.getBytes(dbo, name);
+					out.put(RefKey.create(repository, name.replace(':', '.')),
+							RefData.parseFrom(data));
+				}
+			}
+		} catch (InvalidProtocolBufferException e) {
+			throw new DhtException(e);
+		} catch (MongoException e) {
+			throw new DhtException(e);
+		} finally {
+			cursor.close();
+		}
+		return out;
+	}
+
+	public boolean compareAndPut(RefKey refKey, RefData oldData, RefData newData)
+			throws DhtException, TimeoutException {
+		DBObject update = MongoUtils
+				.set(getField(refKey), newData.toByteArray());
+		try {
+			if (isMissing(oldData))
+				try {
+					DBObject query = createQuery(refKey, new BasicDBObject(
+							"$exists", false));
+					return collection.update(query, update, true, false,
+							writeConcern).getN() > 0;
+				} catch (MongoException.DuplicateKey e) {
+					return false;
+				}
+			DBObject query = createQuery(refKey, oldData.toByteArray());
+			return collection.update(query, update, false, false,
+					writeConcern).getN() > 0;
+		} catch (MongoException e) {
+			throw new DhtException(e);
+		}
+	}
+
+	public boolean compareAndRemove(RefKey refKey, RefData oldData)
+			throws DhtException, TimeoutException {
+		try {
+			if (isMissing(oldData))
+				return collection.findOne(
+						createQuery(refKey, new BasicDBObject("$exists", true)),
+						ID_FIELDS) == null;
+			DBObject query = createQuery(refKey, oldData.toByteArray());
+			return collection.update(query,
+					MongoUtils.unset(getField(refKey)), false, false,
+					writeConcern).getN() > 0;
+		} catch (MongoException e) {
+			throw new DhtException(e);
+		}
+	}
+
+	/**
+	 * Does the given data denote a ref that must not exist?
+	 * 
+	 * @param data
+	 * @return true if null or empty, false otherwise
+	 */
+	protected boolean isMissing(RefData data) {
+		return data == null || data.getSerializedSize() == 0;
+	}
+}
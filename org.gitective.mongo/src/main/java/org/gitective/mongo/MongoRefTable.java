@@ -29,6 +29,8 @@ import com.google.protobuf.InvalidProtocolBufferException;
 import com.mongodb.BasicDBObject;
 import com.mongodb.DBCollection;
 import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.mongodb.WriteConcern;
 
 import java.util.HashMap;
 import java.util.Map;
@@ -43,23 +45,69 @@ import org.eclipse.jgit.storage.dht.spi.RefTable;
 
 /**
  * MongoDB-backed ref table
+ * <p>
+ * Refs are unique by repository and name through a unique index that is
+ * created when the table is created. Creating a ref relies on that index to
+ * fail when the ref already exists.
  */
 public class MongoRefTable implements RefTable {
 
+	/**
+	 * Keys of the unique index on repository and name
+	 */
+	static final DBObject INDEX_KEYS = new BasicDBObject(REPO, 1).append(NAME,
+			1);
+
 	private final DBCollection collection;
 
+	private WriteConcern writeConcern = WriteConcern.SAFE;
+
 	/**
 	 * @param collection
-	 * 
+	 * @throws IllegalStateException
+	 *             if the unique repository and name index could not be
+	 *             created
 	 */
 	public MongoRefTable(DBCollection collection) {
 		this.collection = collection;
+		MongoIndexManager.ensureUniqueIndex(collection, INDEX_KEYS);
+	}
+
+	/**
+	 * Set write concern of ref updates
+	 * 
+	 * @param writeConcern
+	 *            must wait for acknowledgement of the write
+	 * @return this table
+	 */
+	public MongoRefTable setWriteConcern(WriteConcern writeConcern) {
+		if (!writeConcern.callGetLastError())
+			throw new IllegalArgumentException(
+					"Ref updates must be acknowledged");
+		this.writeConcern = writeConcern;
+		return this;
 	}
 
 	private BasicDBObject createRepoObject(RepositoryKey key) {
 		return new BasicDBObject(REPO, key.asInt());
 	}
 
+	private BasicDBObject createRefObject(RefKey key) {
+		BasicDBObject object = createRepoObject(key.getRepositoryKey());
+		object.put(NAME, key.getName());
+		return object;
+	}
+
+	/**
+	 * Does the given data denote a ref that must not exist?
+	 * 
+	 * @param data
+	 * @return true if null or empty, false otherwise
+	 */
+	protected boolean isMissing(RefData data) {
+		return data == null || data.getSerializedSize() == 0;
+	}
+
 	public Map<RefKey, RefData> getAll(Context options, RepositoryKey repository)
 			throws DhtException, TimeoutException {
 		Map<RefKey, RefData> out = new HashMap<RefKey, RefData>();
@@ -80,21 +128,37 @@ public class MongoRefTable implements RefTable {
 
 	public boolean compareAndPut(RefKey refKey, RefData oldData, RefData newData)
 			throws DhtException, TimeoutException {
-		String name = refKey.getName();
-		BasicDBObject query = createRepoObject(refKey.getRepositoryKey());
-		query.put(NAME, name);
-		BasicDBObject object = createRepoObject(refKey.getRepositoryKey());
-		object.put(NAME, name);
-		object.put(DATA, newData.toByteArray());
-		collection.update(query, object, true, false);
-		return true;
+		try {
+			if (isMissing(oldData)) {
+				BasicDBObject object = createRefObject(refKey);
+				object.put(DATA, newData.toByteArray());
+				try {
+					collection.insert(object, writeConcern);
+					return true;
+				} catch (MongoException.DuplicateKey e) {
+					return false;
+				}
+			}
+			BasicDBObject query = createRefObject(refKey);
+			query.put(DATA, oldData.toByteArray());
+			DBObject update = MongoUtils.set(DATA, newData.toByteArray());
+			return collection.update(query, update, false, false,
+					writeConcern).getN() > 0;
+		} catch (MongoException e) {
+			throw new DhtException(e);
+		}
 	}
 
 	public boolean compareAndRemove(RefKey refKey, RefData oldData)
 			throws DhtException, TimeoutException {
-		BasicDBObject query = createRepoObject(refKey.getRepositoryKey());
-		query.put(NAME, refKey.getName());
-		collection.remove(query);
-		return true;
+		BasicDBObject query = createRefObject(refKey);
+		try {
+			if (isMissing(oldData))
+				return collection.findOne(query) == null;
+			query.put(DATA, oldData.toByteArray());
+			return collection.remove(query, writeConcern).getN() > 0;
+		} catch (MongoException e) {
+			throw new DhtException(e);
+		}
 	}
 }
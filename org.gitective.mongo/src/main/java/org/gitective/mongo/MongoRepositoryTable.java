@@ -30,12 +30,14 @@ import com.google.protobuf.InvalidProtocolBufferException;
 import com.mongodb.BasicDBObject;
 import com.mongodb.DBCollection;
 import com.mongodb.DBObject;
+import com.mongodb.WriteConcern;
 
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.eclipse.jgit.generated.storage.dht.proto.GitStore.CachedPackInfo;
 import org.eclipse.jgit.storage.dht.CachedPackKey;
@@ -51,6 +53,26 @@ import org.eclipse.jgit.storage.dht.spi.WriteBuffer;
  */
 public class MongoRepositoryTable implements RepositoryTable {
 
+	/**
+	 * Default number of repository keys reserved at a time
+	 */
+	public static final int DEFAULT_KEY_BLOCK_SIZE = 16;
+
+	/**
+	 * Block of reserved repository keys
+	 */
+	private static class KeyBlock {
+
+		final AtomicInteger next;
+
+		final int last;
+
+		KeyBlock(int first, int last) {
+			next = new AtomicInteger(first);
+			this.last = last;
+		}
+	}
+
 	private static final String PACKS_PREFIX = PACKS + ".";
 
 	private static final String CHUNKS_PREFIX = CHUNKS + ".";
@@ -59,6 +81,12 @@ public class MongoRepositoryTable implements RepositoryTable {
 
 	private final DBCollection metadata;
 
+	private int keyBlockSize = DEFAULT_KEY_BLOCK_SIZE;
+
+	private WriteConcern writeConcern;
+
+	private volatile KeyBlock keys;
+
 	/**
 	 * @param collection
 	 * @param metadata
@@ -66,26 +94,96 @@ public class MongoRepositoryTable implements RepositoryTable {
 	public MongoRepositoryTable(DBCollection collection, DBCollection metadata) {
 		this.collection = collection;
 		this.metadata = metadata;
+		collection.setDBEncoderFactory(MessageEncoder.FACTORY);
 	}
 
-	public RepositoryKey nextKey() throws DhtException {
+	/**
+	 * Set number of repository keys reserved from the database at a time
+	 * 
+	 * @param keyBlockSize
+	 * @return this table
+	 */
+	public MongoRepositoryTable setKeyBlockSize(int keyBlockSize) {
+		if (keyBlockSize < 1)
+			throw new IllegalArgumentException("Block size must be positive");
+		this.keyBlockSize = keyBlockSize;
+		return this;
+	}
+
+	/**
+	 * @return write concern of repository writes, may be null to use collection
+	 *         default
+	 */
+	public WriteConcern getWriteConcern() {
+		return writeConcern;
+	}
+
+	/**
+	 * Set write concern of repository writes
+	 * 
+	 * @param writeConcern
+	 *            may be null to use collection default
+	 * @return this table
+	 */
+	public MongoRepositoryTable setWriteConcern(WriteConcern writeConcern) {
+		this.writeConcern = writeConcern;
+		return this;
+	}
+
+	private KeyBlock reserveKeys() {
+		int size = keyBlockSize;
 		DBObject value = new BasicDBObject(METADATA, 0);
 		DBObject updated = metadata.findAndModify(value, null, null, false,
-				MongoUtils.inc(KEY), true, true);
-		return RepositoryKey.fromInt(MongoUtils.getInt(updated, KEY));
+				MongoUtils.inc(KEY, size), true, true);
+		int last = MongoUtils.getInt(updated, KEY);
+		return new KeyBlock(last - size + 1, last);
+	}
+
+	public RepositoryKey nextKey() throws DhtException {
+		for (;;) {
+			KeyBlock current = keys;
+			if (current != null) {
+				int key = current.next.getAndIncrement();
+				if (key <= current.last)
+					return RepositoryKey.fromInt(key);
+			}
+			synchronized (this) {
+				if (keys == current)
+					keys = reserveKeys();
+			}
+		}
+	}
+
+	/**
+	 * Update/insert document matching query using given write buffer
+	 * 
+	 * @param query
+	 * @param update
+	 * @param buffer
+	 * @throws DhtException
+	 */
+	protected void upsert(DBObject query, DBObject update, WriteBuffer buffer)
+			throws DhtException {
+		if (buffer instanceof MongoWriteBuffer)
+			((MongoWriteBuffer) buffer).upsert(collection, writeConcern, query,
+					update);
+		else if (writeConcern != null)
+			collection.update(query, update, true, false, writeConcern);
+		else
+			collection.update(query, update, true, false);
 	}
 
 	public void put(RepositoryKey repo, ChunkInfo info, WriteBuffer buffer)
 			throws DhtException {
 		String key = CHUNKS_PREFIX + info.getChunkKey().asString();
-		DBObject object = MongoUtils.set(key, info.getData().toByteArray());
-		collection.update(new IdObject(repo.asInt()), object, true, false);
+		DBObject object = MongoUtils.set(key, info.getData());
+		upsert(new IdObject(repo.asInt()), object, buffer);
 	}
 
 	public void remove(RepositoryKey repo, ChunkKey chunk, WriteBuffer buffer)
 			throws DhtException {
 		DBObject object = MongoUtils.unset(CHUNKS_PREFIX + chunk.asString());
-		collection.update(new IdObject(repo.asInt()), object, true, false);
+		upsert(new IdObject(repo.asInt()), object, buffer);
 	}
 
 	public Collection<CachedPackInfo> getCachedPacks(RepositoryKey repo)
@@ -112,14 +210,13 @@ public class MongoRepositoryTable implements RepositoryTable {
 	public void put(RepositoryKey repo, CachedPackInfo info, WriteBuffer buffer)
 			throws DhtException {
 		CachedPackKey key = CachedPackKey.fromInfo(info);
-		DBObject object = MongoUtils.set(PACKS_PREFIX + key.asString(),
-				info.toByteArray());
-		collection.update(new IdObject(repo.asInt()), object, true, false);
+		DBObject object = MongoUtils.set(PACKS_PREFIX + key.asString(), info);
+		upsert(new IdObject(repo.asInt()), object, buffer);
 	}
 
 	public void remove(RepositoryKey repo, CachedPackKey key, WriteBuffer buffer)
 			throws DhtException {
 		DBObject object = MongoUtils.unset(PACKS_PREFIX + key.asString());
-		collection.update(new IdObject(repo.asInt()), object, true, false);
+		upsert(new IdObject(repo.asInt()), object, buffer);
 	}
 }
@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2011 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.gitective.mongo;
+
+import static org.gitective.mongo.ICollectionConstants.CHUNKS;
+import static org.gitective.mongo.ICollectionConstants.CHUNK_META;
+import static org.gitective.mongo.ICollectionConstants.OBJECTS;
+import static org.gitective.mongo.IPropertyConstants.ID;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+
+/**
+ * Sharding of the chunk and object index collections
+ * <p>
+ * Collections are sharded on the document id so lookups of a batch of keys
+ * and of all keys of a repository are routed to the shards owning those keys
+ * instead of being sent to every shard. Databases that will be sharded should
+ * use the {@link KeyCodec#SHARDED} codec so new repositories do not all write
+ * to the last range of the key space.
+ * <p>
+ * All methods do nothing when connected to a mongod instead of a mongos so
+ * they may be run unconditionally, for example against a single local mongod
+ * during development.
+ */
+public class MongoSharding {
+
+	/**
+	 * Default number of ranges a collection is pre-split into
+	 */
+	public static final int DEFAULT_SPLITS = 64;
+
+	/**
+	 * Maximum number of ranges a collection can be pre-split into
+	 */
+	public static final int MAX_SPLITS = 1 << 16;
+
+	private static DB getAdmin(DB db) {
+		return db.getSisterDB("admin");
+	}
+
+	/**
+	 * Is the given database accessed through a mongos router?
+	 * 
+	 * @param db
+	 * @return true if mongos, false if mongod
+	 */
+	public static boolean isMongos(DB db) {
+		return getAdmin(db).command(new BasicDBObject("isdbgrid", 1)).ok();
+	}
+
+	/**
+	 * Is the given collection sharded?
+	 * 
+	 * @param collection
+	 * @return true if sharded, false otherwise
+	 */
+	public static boolean isSharded(DBCollection collection) {
+		return Boolean.TRUE.equals(collection.getStats().get("sharded"));
+	}
+
+	/**
+	 * Shard collection on the document id
+	 * 
+	 * @param collection
+	 * @return true if sharded by this call, false if not connected to a
+	 *         mongos or if already sharded
+	 */
+	public static boolean shardCollection(DBCollection collection) {
+		DB db = collection.getDB();
+		if (!isMongos(db) || isSharded(collection))
+			return false;
+		DB admin = getAdmin(db);
+		admin.command(new BasicDBObject("enableSharding", db.getName()));
+		admin.command(
+				new BasicDBObject("shardCollection", collection.getFullName())
+						.append("key", new BasicDBObject(ID, 1)))
+				.throwOnError();
+		return true;
+	}
+
+	/**
+	 * Split sharded collection into ranges of about equal size of the key
+	 * space of the given codec
+	 * <p>
+	 * This should be run on an empty collection before a bulk import so that
+	 * writes are spread across shards as soon as the balancer has moved the
+	 * ranges instead of all going to a single range that is split as it
+	 * grows.
+	 * 
+	 * @param collection
+	 * @param codec
+	 * @param splits
+	 *            number of ranges between 2 and {@link #MAX_SPLITS}
+	 * @return number of split points created
+	 */
+	public static int preSplit(DBCollection collection, KeyCodec codec,
+			int splits) {
+		if (splits < 2 || splits > MAX_SPLITS)
+			throw new IllegalArgumentException("Splits must be between 2 and "
+					+ MAX_SPLITS);
+		if (!isMongos(collection.getDB()))
+			return 0;
+		DB admin = getAdmin(collection.getDB());
+		String name = collection.getFullName();
+		for (int i = 1; i < splits; i++) {
+			Object middle = codec.createSplitPoint((int) ((long) i
+					* MAX_SPLITS / splits));
+			admin.command(
+					new BasicDBObject("split", name).append("middle",
+							new IdObject(middle))).throwOnError();
+		}
+		return splits - 1;
+	}
+
+	/**
+	 * Shard and pre-split the chunk and object index collections of the
+	 * given database
+	 * 
+	 * @param db
+	 * @param codec
+	 * @param splits
+	 * @return number of collections sharded
+	 */
+	public static int shard(DB db, KeyCodec codec, int splits) {
+		if (!isMongos(db))
+			return 0;
+		int sharded = 0;
+		String[] names = new String[] { CHUNKS, OBJECTS, CHUNK_META };
+		for (String name : names) {
+			if (CHUNK_META.equals(name) && !db.collectionExists(name))
+				continue;
+			DBCollection collection = db.getCollection(name);
+			if (!shardCollection(collection))
+				continue;
+			preSplit(collection, codec, splits);
+			sharded++;
+		}
+		return sharded;
+	}
+}
@@ -21,14 +21,17 @@
  */
 package org.gitective.mongo;
 
+import com.google.protobuf.MessageLite;
+import com.mongodb.BasicDBList;
 import com.mongodb.BasicDBObject;
 import com.mongodb.DB;
 import com.mongodb.DBObject;
-import com.mongodb.Mongo;
-import com.mongodb.MongoException;
 
-import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 
 /**
  * MongoDB helpers
@@ -70,6 +73,17 @@ public class MongoUtils {
 		return value != null ? value.toString() : null;
 	}
 
+	/**
+	 * Get chunk or object index key string stored in key
+	 * 
+	 * @param object
+	 * @param key
+	 * @return key string decoded from either string or binary value
+	 */
+	public static String getKey(DBObject object, String key) {
+		return KeyCodec.decode(object.get(key));
+	}
+
 	/**
 	 * Get integer value of key
 	 * 
@@ -103,6 +117,39 @@ public class MongoUtils {
 		return new BasicDBObject("$unset", new BasicDBObject(key, 1));
 	}
 
+	/**
+	 * Add value to array key unless already present
+	 * 
+	 * @param key
+	 * @param value
+	 * @return query
+	 */
+	public static BasicDBObject addToSet(String key, Object value) {
+		return new BasicDBObject("$addToSet", new BasicDBObject(key, value));
+	}
+
+	/**
+	 * Append value to array key
+	 * 
+	 * @param key
+	 * @param value
+	 * @return query
+	 */
+	public static BasicDBObject push(String key, Object value) {
+		return new BasicDBObject("$push", new BasicDBObject(key, value));
+	}
+
+	/**
+	 * Remove all values of array key matching condition
+	 * 
+	 * @param key
+	 * @param condition
+	 * @return query
+	 */
+	public static BasicDBObject pull(String key, Object condition) {
+		return new BasicDBObject("$pull", new BasicDBObject(key, condition));
+	}
+
 	/**
 	 * Increment key by 1
 	 * 
@@ -124,6 +171,226 @@ public class MongoUtils {
 		return new BasicDBObject("$inc", new BasicDBObject(key, value));
 	}
 
+	/**
+	 * Copy update, including the fields of each top-level operator
+	 * 
+	 * @param update
+	 * @return copy
+	 */
+	public static BasicDBObject copy(DBObject update) {
+		BasicDBObject copy = new BasicDBObject();
+		for (String key : update.keySet()) {
+			Object value = update.get(key);
+			if (key.startsWith("$") && value instanceof DBObject)
+				value = new BasicDBObject(((DBObject) value).toMap());
+			copy.put(key, value);
+		}
+		return copy;
+	}
+
+	private static boolean isPathConflict(DBObject fields, String field) {
+		for (String key : fields.keySet())
+			if (!key.equals(field)
+					&& (key.startsWith(field + ".") || field.startsWith(key
+							+ ".")))
+				return true;
+		return false;
+	}
+
+	/**
+	 * Is the given update a replacement document instead of a set of update
+	 * operators?
+	 * 
+	 * @param update
+	 * @return true if replacement, false otherwise
+	 */
+	public static boolean isReplacement(DBObject update) {
+		for (String key : update.keySet())
+			if (key.startsWith("$"))
+				return false;
+		return true;
+	}
+
+	private static boolean isMergeable(DBObject update) {
+		for (String operator : update.keySet())
+			if (!"$set".equals(operator) && !"$unset".equals(operator))
+				return false;
+		return true;
+	}
+
+	private static void clear(DBObject object) {
+		for (String key : new ArrayList<String>(object.keySet()))
+			object.removeField(key);
+	}
+
+	private static boolean isAddToSet(DBObject update) {
+		for (String operator : update.keySet())
+			if (!"$addToSet".equals(operator))
+				return false;
+		return true;
+	}
+
+	private static BasicDBList getEach(Object value) {
+		BasicDBList each = new BasicDBList();
+		if (value instanceof DBObject
+				&& ((DBObject) value).containsField("$each"))
+			each.addAll((List<?>) ((DBObject) value).get("$each"));
+		else
+			each.add(value);
+		return each;
+	}
+
+	private static void mergeAddToSet(DBObject target, DBObject update) {
+		DBObject targetFields = (DBObject) target.get("$addToSet");
+		DBObject fields = (DBObject) update.get("$addToSet");
+		for (String field : fields.keySet()) {
+			Object value = fields.get(field);
+			if (targetFields.containsField(field)) {
+				BasicDBList each = getEach(targetFields.get(field));
+				each.addAll(getEach(value));
+				value = new BasicDBObject("$each", each);
+			}
+			targetFields.put(field, value);
+		}
+	}
+
+	/**
+	 * Merge update into target
+	 * <p>
+	 * A replacement document overwrites the target, $set and $unset operators
+	 * are applied to the fields of a target replacement document or combined
+	 * with the operators of a target update, and $addToSet operators are
+	 * combined using $each. The target must be a copy
+	 * created by {@link #copy(DBObject)}.
+	 * 
+	 * @param target
+	 * @param update
+	 * @return true if merged, false if the updates cannot be combined
+	 */
+	public static boolean merge(DBObject target, DBObject update) {
+		if (isReplacement(update)) {
+			clear(target);
+			target.putAll(update);
+			return true;
+		}
+		if (isAddToSet(target) && isAddToSet(update)) {
+			mergeAddToSet(target, update);
+			return true;
+		}
+		if (!isMergeable(update))
+			return false;
+
+		if (isReplacement(target)) {
+			for (String operator : update.keySet())
+				for (String field : ((DBObject) update.get(operator)).keySet())
+					if (field.indexOf('.') != -1)
+						return false;
+			for (String operator : update.keySet()) {
+				DBObject fields = (DBObject) update.get(operator);
+				for (String field : fields.keySet())
+					if ("$set".equals(operator))
+						target.put(field, fields.get(field));
+					else
+						target.removeField(field);
+			}
+			return true;
+		}
+		if (!isMergeable(target))
+			return false;
+
+		DBObject set = (DBObject) target.get("$set");
+		if (set == null)
+			set = new BasicDBObject();
+		DBObject unset = (DBObject) target.get("$unset");
+		if (unset == null)
+			unset = new BasicDBObject();
+		for (String operator : update.keySet()) {
+			DBObject fields = (DBObject) update.get(operator);
+			for (String field : fields.keySet())
+				if (isPathConflict(set, field) || isPathConflict(unset, field))
+					return false;
+		}
+
+		for (String operator : update.keySet()) {
+			boolean isSet = "$set".equals(operator);
+			DBObject fields = (DBObject) update.get(operator);
+			for (String field : fields.keySet())
+				if (isSet) {
+					unset.removeField(field);
+					set.put(field, fields.get(field));
+				} else {
+					set.removeField(field);
+					unset.put(field, 1);
+				}
+		}
+		target.removeField("$set");
+		target.removeField("$unset");
+		if (!set.keySet().isEmpty())
+			target.put("$set", set);
+		if (!unset.keySet().isEmpty())
+			target.put("$unset", unset);
+		return true;
+	}
+
+	/**
+	 * Estimate the encoded size of the given value
+	 * 
+	 * @param value
+	 * @return size in bytes
+	 */
+	public static int size(Object value) {
+		if (value instanceof byte[])
+			return ((byte[]) value).length + 5;
+		if (value instanceof String)
+			return ((String) value).length() + 5;
+		if (value instanceof MessageLite)
+			return ((MessageLite) value).getSerializedSize() + 5;
+		if (value instanceof DBObject) {
+			DBObject object = (DBObject) value;
+			int size = 5;
+			for (String key : object.keySet())
+				size += key.length() + 2 + size(object.get(key));
+			return size;
+		}
+		if (value instanceof Map)
+			return size(new BasicDBObject((Map<?, ?>) value));
+		return 8;
+	}
+
+	/**
+	 * Match key against any of the given values
+	 * 
+	 * @param key
+	 * @param values
+	 * @return query
+	 */
+	public static BasicDBObject in(String key, Collection<?> values) {
+		return new BasicDBObject(key, new BasicDBObject("$in", values));
+	}
+
+	/**
+	 * Partition values into lists no larger than given size
+	 * 
+	 * @param values
+	 * @param size
+	 * @return non-empty lists of values
+	 */
+	public static <V> List<List<V>> partition(Collection<V> values, int size) {
+		if (size < 1)
+			size = Math.max(1, values.size());
+		List<List<V>> batches = new ArrayList<List<V>>(
+				(values.size() + size - 1) / size);
+		List<V> batch = null;
+		for (V value : values) {
+			if (batch == null || batch.size() == size) {
+				batch = new ArrayList<V>(Math.min(size, values.size()));
+				batches.add(batch);
+			}
+			batch.add(value);
+		}
+		return batches;
+	}
+
 	/**
 	 * Get DB with given name using default connection
 	 * 
@@ -131,12 +398,7 @@ public class MongoUtils {
 	 * @return database
 	 */
 	public static DB getDB(String name) {
-		try {
-			return new Mongo().getDB(name);
-		} catch (UnknownHostException e) {
-			throw new IllegalArgumentException(e);
-		} catch (MongoException e) {
-			throw new IllegalArgumentException(e);
-		}
+		return MongoConnections.getDefault().getDB(
+				MongoConnections.DEFAULT_CONNECTION, name);
 	}
 }
@@ -21,17 +21,303 @@
  */
 package org.gitective.mongo;
 
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.mongodb.WriteConcern;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
 import org.eclipse.jgit.storage.dht.DhtException;
 import org.eclipse.jgit.storage.dht.spi.WriteBuffer;
 
 /**
  * MongoDB write buffer
+ * <p>
+ * Upserts and removes are queued per collection and document and sent when
+ * {@link #flush()} is called or when the buffered byte or operation count
+ * reaches the configured limit. Updates to the same document are merged into
+ * a single update where possible and otherwise sent in the order they were
+ * queued. Documents are matched by the content of their query so binary ids
+ * are merged like string ids.
+ * <p>
+ * The operations queued for a collection are sent without waiting for
+ * acknowledgement on a single connection and then confirmed once using the
+ * write concern they were queued with, or the write concern of the collection
+ * when none was given. Since the last error of a connection only
+ * reflects its most recent write, the confirmation guarantees that all writes
+ * reached the configured durability but only reports the error of the last
+ * write when several fail.
  */
 public class MongoWriteBuffer implements WriteBuffer {
 
-	public void flush() throws DhtException {
+	/**
+	 * Default number of bytes buffered before writes are sent
+	 */
+	public static final int DEFAULT_BUFFER_SIZE = 4 * 1024 * 1024;
+
+	/**
+	 * Default number of operations buffered before writes are sent
+	 */
+	public static final int DEFAULT_OPERATION_LIMIT = 1000;
+
+	/**
+	 * Queued write to a single document
+	 */
+	private static class Operation {
+
+		final DBObject query;
+
+		boolean remove;
+
+		final List<DBObject> updates = new ArrayList<DBObject>(1);
+
+		Operation(DBObject query) {
+			this.query = query;
+		}
+	}
+
+	/**
+	 * Key of queued operations comparing binary values by content
+	 */
+	private static class QueryKey {
+
+		final DBObject query;
+
+		final int hash;
+
+		QueryKey(DBObject query) {
+			this.query = query;
+			int hash = 0;
+			for (String key : query.keySet())
+				hash += key.hashCode() ^ hashValue(query.get(key));
+			this.hash = hash;
+		}
+
+		private static int hashValue(Object value) {
+			if (value instanceof byte[])
+				return Arrays.hashCode((byte[]) value);
+			return value != null ? value.hashCode() : 0;
+		}
+
+		private static boolean equalValues(Object value1, Object value2) {
+			if (value1 instanceof byte[] && value2 instanceof byte[])
+				return Arrays.equals((byte[]) value1, (byte[]) value2);
+			return value1 != null ? value1.equals(value2) : value2 == null;
+		}
+
+		public int hashCode() {
+			return hash;
+		}
+
+		public boolean equals(Object obj) {
+			if (obj == this)
+				return true;
+			if (!(obj instanceof QueryKey))
+				return false;
+			DBObject other = ((QueryKey) obj).query;
+			if (!query.keySet().equals(other.keySet()))
+				return false;
+			for (String key : query.keySet())
+				if (!equalValues(query.get(key), other.get(key)))
+					return false;
+			return true;
+		}
+	}
+
+	private final Map<DBCollection, Map<QueryKey, Operation>> pending = new LinkedHashMap<DBCollection, Map<QueryKey, Operation>>();
+
+	private final Map<DBCollection, WriteConcern> concerns = new HashMap<DBCollection, WriteConcern>();
+
+	private final int bufferSize;
+
+	private final int operationLimit;
+
+	private int bufferedBytes;
+
+	private int bufferedOperations;
+
+	/**
+	 * Create write buffer with default limits
+	 */
+	public MongoWriteBuffer() {
+		this(DEFAULT_BUFFER_SIZE, DEFAULT_OPERATION_LIMIT);
+	}
+
+	/**
+	 * Create write buffer
+	 * 
+	 * @param bufferSize
+	 * @param operationLimit
+	 */
+	public MongoWriteBuffer(int bufferSize, int operationLimit) {
+		this.bufferSize = bufferSize;
+		this.operationLimit = operationLimit;
+	}
+
+	private Map<QueryKey, Operation> getOperations(DBCollection collection,
+			WriteConcern concern) throws DhtException {
+		if (concern == null)
+			concern = collection.getWriteConcern();
+		Map<QueryKey, Operation> operations = pending.get(collection);
+		if (operations != null && !concern.equals(concerns.get(collection))) {
+			// Writes queued with another concern are confirmed with it first
+			send(collection, operations.values());
+			pending.remove(collection);
+			operations = null;
+		}
+		if (operations == null) {
+			operations = new LinkedHashMap<QueryKey, Operation>();
+			pending.put(collection, operations);
+			concerns.put(collection, concern);
+		}
+		return operations;
+	}
+
+	/**
+	 * Queue update/insert of document matching query
+	 * 
+	 * @param collection
+	 * @param query
+	 * @param update
+	 * @throws DhtException
+	 */
+	public void upsert(DBCollection collection, DBObject query,
+			DBObject update) throws DhtException {
+		upsert(collection, null, query, update);
+	}
+
+	/**
+	 * Queue update/insert of document matching query confirmed with the
+	 * given write concern
+	 * 
+	 * @param collection
+	 * @param concern
+	 *            may be null to use collection default
+	 * @param query
+	 * @param update
+	 * @throws DhtException
+	 */
+	public synchronized void upsert(DBCollection collection,
+			WriteConcern concern, DBObject query, DBObject update)
+			throws DhtException {
+		Map<QueryKey, Operation> operations = getOperations(collection,
+				concern);
+		QueryKey key = new QueryKey(query);
+		Operation operation = operations.get(key);
+		if (operation == null) {
+			operation = new Operation(query);
+			operations.put(key, operation);
+		}
+		int last = operation.updates.size() - 1;
+		if (last < 0 || !MongoUtils.merge(operation.updates.get(last), update))
+			operation.updates.add(MongoUtils.copy(update));
+		buffered(MongoUtils.size(update));
+	}
+
+	/**
+	 * Queue removal of document matching query
+	 * 
+	 * @param collection
+	 * @param query
+	 * @throws DhtException
+	 */
+	public void remove(DBCollection collection, DBObject query)
+			throws DhtException {
+		remove(collection, null, query);
+	}
+
+	/**
+	 * Queue removal of document matching query confirmed with the given write
+	 * concern
+	 * 
+	 * @param collection
+	 * @param concern
+	 *            may be null to use collection default
+	 * @param query
+	 * @throws DhtException
+	 */
+	public synchronized void remove(DBCollection collection,
+			WriteConcern concern, DBObject query) throws DhtException {
+		Operation operation = new Operation(query);
+		operation.remove = true;
+		getOperations(collection, concern).put(new QueryKey(query), operation);
+		buffered(MongoUtils.size(query));
+	}
+
+	private void buffered(int size) throws DhtException {
+		bufferedBytes += size;
+		bufferedOperations++;
+		if (bufferedBytes >= bufferSize
+				|| bufferedOperations >= operationLimit)
+			flush();
+	}
+
+	private void send(DBCollection collection, Operation operation,
+			WriteConcern concern) throws DhtException {
+		try {
+			if (operation.remove)
+				collection.remove(operation.query, concern);
+			for (DBObject update : operation.updates)
+				collection.update(operation.query, update, true, false,
+						concern);
+		} catch (MongoException e) {
+			throw new DhtException(e);
+		}
+	}
+
+	private void send(DBCollection collection,
+			Collection<Operation> operations) throws DhtException {
+		WriteConcern concern = concerns.get(collection);
+		DB db = collection.getDB();
+		db.requestStart();
+		try {
+			for (Operation operation : operations)
+				send(collection, operation, WriteConcern.NORMAL);
+			if (concern.callGetLastError())
+				db.getLastError(concern).throwOnError();
+		} catch (MongoException e) {
+			throw new DhtException(e);
+		} finally {
+			db.requestDone();
+		}
+	}
+
+	/**
+	 * Send all queued writes
+	 * <p>
+	 * The writes of each collection are removed from the buffer once they
+	 * have been sent. If sending fails, the writes of the failed collection
+	 * and of all collections not yet sent remain queued and are sent again by
+	 * the next flush unless {@link #abort()} is called.
+	 */
+	public synchronized void flush() throws DhtException {
+		Iterator<Entry<DBCollection, Map<QueryKey, Operation>>> entries = pending
+				.entrySet().iterator();
+		while (entries.hasNext()) {
+			Entry<DBCollection, Map<QueryKey, Operation>> entry = entries
+					.next();
+			send(entry.getKey(), entry.getValue().values());
+			concerns.remove(entry.getKey());
+			entries.remove();
+		}
+		bufferedBytes = 0;
+		bufferedOperations = 0;
 	}
 
-	public void abort() throws DhtException {
+	public synchronized void abort() throws DhtException {
+		pending.clear();
+		concerns.clear();
+		bufferedBytes = 0;
+		bufferedOperations = 0;
 	}
 }
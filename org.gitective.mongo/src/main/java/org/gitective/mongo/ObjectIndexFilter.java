@@ -0,0 +1,248 @@
+/*
+ * Copyright (c) 2011 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.gitective.mongo;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.eclipse.jgit.storage.dht.ObjectIndexKey;
+
+/**
+ * Per-repository Bloom filters of the object ids present in the object index
+ * <p>
+ * A repository filter is loaded from the object index the first time it is
+ * needed and again once it is older than the configured maximum age. Objects
+ * added through this process are recorded immediately. Objects added by other
+ * processes are only seen once the filter is reloaded, so a filter should only
+ * be used to answer misses for lookups that tolerate missing results unless
+ * this process is the only writer.
+ */
+public class ObjectIndexFilter {
+
+	/**
+	 * Default number of objects each repository filter is sized for
+	 */
+	public static final long DEFAULT_EXPECTED_OBJECTS = 1 << 20;
+
+	/**
+	 * Default false positive rate
+	 */
+	public static final double DEFAULT_FALSE_POSITIVE_RATE = 0.01;
+
+	/**
+	 * Default maximum age of a loaded filter in milliseconds
+	 */
+	public static final long DEFAULT_MAX_AGE = 15 * 60 * 1000;
+
+	private class RepositoryFilter {
+
+		volatile BloomFilter filter = new BloomFilter(expectedObjects,
+				falsePositiveRate);
+
+		volatile long loaded;
+
+		BloomFilter loading;
+
+		synchronized void add(long hash1, long hash2) {
+			filter.add(hash1, hash2);
+			if (loading != null)
+				loading.add(hash1, hash2);
+		}
+
+		synchronized BloomFilter beginLoad() {
+			if (loading != null)
+				return null;
+			loading = new BloomFilter(expectedObjects, falsePositiveRate);
+			return loading;
+		}
+
+		synchronized void endLoad(boolean success) {
+			if (success) {
+				loading.addAll(filter);
+				filter = loading;
+				loaded = System.currentTimeMillis();
+			}
+			loading = null;
+		}
+	}
+
+	private final ConcurrentMap<String, RepositoryFilter> filters = new ConcurrentHashMap<String, RepositoryFilter>();
+
+	private final long expectedObjects;
+
+	private final double falsePositiveRate;
+
+	private final long maxAge;
+
+	private final boolean authoritative;
+
+	/**
+	 * Create filter with default settings that is not authoritative
+	 */
+	public ObjectIndexFilter() {
+		this(DEFAULT_EXPECTED_OBJECTS, DEFAULT_FALSE_POSITIVE_RATE,
+				DEFAULT_MAX_AGE, false);
+	}
+
+	/**
+	 * Create filter
+	 * 
+	 * @param expectedObjects
+	 *            number of objects each repository filter is sized for
+	 * @param falsePositiveRate
+	 * @param maxAge
+	 *            milliseconds before a loaded filter is reloaded
+	 * @param authoritative
+	 *            true if this process is the only writer to the object index
+	 *            and misses may be answered for all lookups
+	 */
+	public ObjectIndexFilter(long expectedObjects, double falsePositiveRate,
+			long maxAge, boolean authoritative) {
+		this.expectedObjects = expectedObjects;
+		this.falsePositiveRate = falsePositiveRate;
+		this.maxAge = maxAge;
+		this.authoritative = authoritative;
+	}
+
+	/**
+	 * Are misses reported by this filter valid for all lookups?
+	 * 
+	 * @return true if authoritative, false if only valid for lookups that
+	 *         tolerate missing results
+	 */
+	public boolean isAuthoritative() {
+		return authoritative;
+	}
+
+	/**
+	 * Get repository prefix of key
+	 * 
+	 * @param key
+	 *            key string
+	 * @return prefix up to and including the repository separator
+	 */
+	public static String getRepository(String key) {
+		return key.substring(0, key.indexOf('.') + 1);
+	}
+
+	private static long hash(String key, int start) {
+		long hash = 0;
+		int end = Math.min(key.length(), start + 16);
+		for (int i = start; i < end; i++) {
+			int digit = Character.digit(key.charAt(i), 16);
+			if (digit < 0)
+				return key.hashCode() * 0x9E3779B97F4A7C15L + start;
+			hash = (hash << 4) | digit;
+		}
+		return hash;
+	}
+
+	private RepositoryFilter getFilter(String repository) {
+		RepositoryFilter filter = filters.get(repository);
+		if (filter == null) {
+			filter = new RepositoryFilter();
+			RepositoryFilter existing = filters.putIfAbsent(repository,
+					filter);
+			if (existing != null)
+				filter = existing;
+		}
+		return filter;
+	}
+
+	/**
+	 * Does the filter for the given repository need to be loaded?
+	 * 
+	 * @param repository
+	 * @return true if never loaded or older than the maximum age
+	 */
+	public boolean needsLoad(String repository) {
+		RepositoryFilter filter = filters.get(repository);
+		return filter == null || filter.loaded == 0
+				|| System.currentTimeMillis() - filter.loaded > maxAge;
+	}
+
+	/**
+	 * Load repository filter from the given object index keys
+	 * <p>
+	 * Nothing is loaded if another thread is already loading the filter
+	 * 
+	 * @param repository
+	 * @param keys
+	 *            key strings of all objects in repository
+	 */
+	public void load(String repository, Iterator<String> keys) {
+		RepositoryFilter filter = getFilter(repository);
+		BloomFilter loading = filter.beginLoad();
+		if (loading == null)
+			return;
+		boolean success = false;
+		try {
+			int offset = repository.length();
+			while (keys.hasNext()) {
+				String key = keys.next();
+				loading.add(hash(key, offset), hash(key, offset + 16));
+			}
+			success = true;
+		} finally {
+			filter.endLoad(success);
+		}
+	}
+
+	/**
+	 * Record object added to the index
+	 * 
+	 * @param key
+	 */
+	public void add(ObjectIndexKey key) {
+		String value = key.asString();
+		String repository = getRepository(value);
+		int offset = repository.length();
+		getFilter(repository).add(hash(value, offset),
+				hash(value, offset + 16));
+	}
+
+	/**
+	 * Might the object index contain the given key?
+	 * 
+	 * @param key
+	 * @return false if definitely not present, true if present or if the
+	 *         repository filter has not been loaded
+	 */
+	public boolean mightContain(ObjectIndexKey key) {
+		String value = key.asString();
+		String repository = getRepository(value);
+		RepositoryFilter filter = filters.get(repository);
+		if (filter == null || filter.loaded == 0)
+			return true;
+		int offset = repository.length();
+		return filter.filter.mightContain(hash(value, offset),
+				hash(value, offset + 16));
+	}
+
+	/**
+	 * Remove all repository filters
+	 */
+	public void clear() {
+		filters.clear();
+	}
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2011 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.gitective.mongo;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.eclipse.jgit.storage.dht.AsyncCallback;
+import org.eclipse.jgit.storage.dht.DhtException;
+import org.eclipse.jgit.storage.dht.StreamingCallback;
+
+/**
+ * Lookup of keys split into batches that run on an executor
+ * <p>
+ * At most the given number of batches run at the same time. Results of each
+ * batch are passed to {@link StreamingCallback#onPartialResult(Object)} as
+ * they complete when the callback supports partial results, followed by a
+ * call to {@link AsyncCallback#onSuccess(Object)} with an empty result.
+ * Otherwise all results are merged and passed to
+ * {@link AsyncCallback#onSuccess(Object)} once all batches complete. The
+ * first failure is passed to {@link AsyncCallback#onFailure(DhtException)}
+ * and stops any batches not yet started.
+ * <p>
+ * Callbacks are invoked without holding the lookup state lock so batches
+ * completing on other threads are not blocked by a slow callback. Partial
+ * results and the failure are passed one at a time, and no partial result is
+ * passed after the failure.
+ * 
+ * @param <K>
+ *            key type
+ * @param <T>
+ *            result type
+ */
+abstract class ParallelLookup<K, T> {
+
+	/**
+	 * Executor running batches on the thread starting them
+	 */
+	static final Executor DIRECT = new Executor() {
+
+		public void execute(Runnable command) {
+			command.run();
+		}
+	};
+
+	private final Executor executor;
+
+	private final Iterator<List<K>> batches;
+
+	private final AsyncCallback<T> callback;
+
+	private final StreamingCallback<T> streaming;
+
+	private final Object deliveryLock = new Object();
+
+	private T result;
+
+	private int running;
+
+	private boolean done;
+
+	/**
+	 * @param executor
+	 * @param keys
+	 * @param batchSize
+	 * @param callback
+	 */
+	ParallelLookup(Executor executor, Set<K> keys, int batchSize,
+			AsyncCallback<T> callback) {
+		this.executor = executor;
+		this.batches = MongoUtils.partition(keys, batchSize).iterator();
+		this.callback = callback;
+		if (callback instanceof StreamingCallback)
+			streaming = (StreamingCallback<T>) callback;
+		else
+			streaming = null;
+		result = createResult();
+	}
+
+	/**
+	 * Create empty result
+	 * 
+	 * @return result
+	 */
+	protected abstract T createResult();
+
+	/**
+	 * Add partial result to result
+	 * 
+	 * @param result
+	 * @param partial
+	 */
+	protected abstract void addResult(T result, T partial);
+
+	/**
+	 * Look up batch of keys
+	 * 
+	 * @param keys
+	 * @param callback
+	 */
+	protected abstract void lookup(Set<K> keys, AsyncCallback<T> callback);
+
+	/**
+	 * Start lookup
+	 * 
+	 * @param parallelism
+	 *            maximum number of batches running at the same time
+	 */
+	void start(int parallelism) {
+		boolean empty;
+		synchronized (this) {
+			empty = !batches.hasNext();
+			if (empty)
+				done = true;
+		}
+		if (empty) {
+			callback.onSuccess(result);
+			return;
+		}
+		for (int i = 0; i < Math.max(1, parallelism); i++)
+			if (!next())
+				break;
+	}
+
+	private boolean next() {
+		final List<K> batch;
+		synchronized (this) {
+			if (done || !batches.hasNext())
+				return false;
+			batch = batches.next();
+			running++;
+		}
+		try {
+			executor.execute(new Runnable() {
+
+				public void run() {
+					lookupBatch(batch);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			fail(new DhtException(e));
+			return false;
+		}
+		return true;
+	}
+
+	private void lookupBatch(List<K> batch) {
+		try {
+			lookup(new HashSet<K>(batch), new AsyncCallback<T>() {
+
+				public void onSuccess(T partial) {
+					complete(partial);
+				}
+
+				public void onFailure(DhtException error) {
+					fail(error);
+				}
+			});
+		} catch (RuntimeException e) {
+			fail(new DhtException(e));
+		}
+	}
+
+	private synchronized boolean isDone() {
+		return done;
+	}
+
+	private void complete(T partial) {
+		if (streaming != null)
+			synchronized (deliveryLock) {
+				if (isDone())
+					return;
+				streaming.onPartialResult(partial);
+			}
+		boolean finished;
+		synchronized (this) {
+			if (done)
+				return;
+			if (streaming == null)
+				addResult(result, partial);
+			running--;
+			finished = running == 0 && !batches.hasNext();
+			if (finished)
+				done = true;
+		}
+		if (finished)
+			callback.onSuccess(result);
+		else
+			next();
+	}
+
+	private void fail(DhtException error) {
+		synchronized (this) {
+			if (done)
+				return;
+			done = true;
+		}
+		synchronized (deliveryLock) {
+			callback.onFailure(error);
+		}
+	}
+}
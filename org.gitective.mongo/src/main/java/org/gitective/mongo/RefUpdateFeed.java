@@ -0,0 +1,262 @@
+/*
+ * Copyright (c) 2011 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.gitective.mongo;
+
+import static org.gitective.mongo.ICollectionConstants.REF_UPDATES;
+import static org.gitective.mongo.IPropertyConstants.ID;
+import static org.gitective.mongo.IPropertyConstants.REPO;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.Bytes;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.mongodb.WriteConcern;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.eclipse.jgit.storage.dht.RepositoryKey;
+
+/**
+ * Feed of ref updates shared by all processes using a database
+ * <p>
+ * Updates are inserted into a capped collection that is read by a tailable
+ * cursor on a background thread, each update read is passed to the
+ * registered listeners. The collection is seeded with a document since a
+ * tailable cursor on an empty collection is closed immediately.
+ * <p>
+ * When the cursor has to be reopened, updates already read are skipped up to
+ * the last one seen. Listeners are only reset when that update is no longer
+ * in the collection since updates may then have been missed.
+ */
+public class RefUpdateFeed {
+
+	/**
+	 * Listener of ref updates
+	 */
+	public interface Listener {
+
+		/**
+		 * A ref of the repository was updated
+		 * 
+		 * @param repository
+		 */
+		void onUpdate(RepositoryKey repository);
+
+		/**
+		 * Updates may have been missed
+		 */
+		void onReset();
+	}
+
+	/**
+	 * Default size in bytes of the capped collection
+	 */
+	public static final int DEFAULT_SIZE = 1024 * 1024;
+
+	private static final long RETRY_DELAY = 1000;
+
+	private final DBCollection collection;
+
+	private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+	private final Thread thread;
+
+	private volatile boolean closed;
+
+	private volatile DBCursor cursor;
+
+	/**
+	 * Create feed using capped collection of default name and size
+	 * 
+	 * @param db
+	 */
+	public RefUpdateFeed(DB db) {
+		this(db, REF_UPDATES);
+	}
+
+	/**
+	 * Create feed using capped collection of default size
+	 * 
+	 * @param db
+	 * @param name
+	 */
+	public RefUpdateFeed(DB db, String name) {
+		this(db, name, DEFAULT_SIZE);
+	}
+
+	/**
+	 * Create feed, creating the capped collection if it does not exist
+	 * 
+	 * @param db
+	 * @param name
+	 * @param size
+	 *            size in bytes of capped collection
+	 */
+	public RefUpdateFeed(DB db, String name, int size) {
+		if (!db.collectionExists(name))
+			try {
+				db.createCollection(name, new BasicDBObject("capped", true)
+						.append("size", size));
+			} catch (MongoException e) {
+				// Created concurrently by another process
+			}
+		collection = db.getCollection(name);
+		if (collection.findOne() == null)
+			collection.insert(new BasicDBObject(), WriteConcern.SAFE);
+		thread = new Thread(new Runnable() {
+
+			public void run() {
+				tail();
+			}
+		}, "RefUpdateFeed " + name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Add listener
+	 * 
+	 * @param listener
+	 * @return this feed
+	 */
+	public RefUpdateFeed addListener(Listener listener) {
+		listeners.add(listener);
+		return this;
+	}
+
+	/**
+	 * Remove listener
+	 * 
+	 * @param listener
+	 * @return this feed
+	 */
+	public RefUpdateFeed removeListener(Listener listener) {
+		listeners.remove(listener);
+		return this;
+	}
+
+	/**
+	 * Publish update of a ref of the repository
+	 * 
+	 * @param repository
+	 */
+	public void publish(RepositoryKey repository) {
+		try {
+			collection.insert(new BasicDBObject(REPO, repository.asInt()),
+					WriteConcern.SAFE);
+		} catch (MongoException e) {
+			reset();
+		}
+	}
+
+	private void reset() {
+		for (Listener listener : listeners)
+			listener.onReset();
+	}
+
+	private void update(DBObject object) {
+		int repository = MongoUtils.getInt(object, REPO);
+		if (repository == -1)
+			return;
+		RepositoryKey key = RepositoryKey.fromInt(repository);
+		for (Listener listener : listeners)
+			listener.onUpdate(key);
+	}
+
+	private Object getLastId() {
+		DBCursor last = collection.find()
+				.sort(new BasicDBObject("$natural", -1)).limit(1);
+		try {
+			return last.hasNext() ? last.next().get(ID) : null;
+		} finally {
+			last.close();
+		}
+	}
+
+	private void tail() {
+		Object lastId = null;
+		boolean started = false;
+		while (!closed) {
+			try {
+				if (!started) {
+					lastId = getLastId();
+					started = true;
+				}
+				cursor = collection.find()
+						.addOption(Bytes.QUERYOPTION_TAILABLE)
+						.addOption(Bytes.QUERYOPTION_AWAITDATA);
+				boolean skipping = lastId != null;
+				boolean checked = !skipping;
+				while (!closed)
+					if (cursor.hasNext()) {
+						// Skipping stops at the last update seen, so it must
+						// still be in the collection once the cursor has
+						// started, the awaiting cursor never reports reaching
+						// the end to detect it otherwise
+						if (!checked) {
+							checked = true;
+							DBObject last = new BasicDBObject(ID, lastId);
+							if (collection.findOne(last) == null) {
+								skipping = false;
+								reset();
+							}
+						}
+						DBObject object = cursor.next();
+						Object id = object.get(ID);
+						if (skipping) {
+							skipping = !lastId.equals(id);
+							continue;
+						}
+						lastId = id;
+						update(object);
+					} else if (cursor.getCursorId() == 0)
+						break;
+			} catch (MongoException e) {
+				// Reopened after the retry delay
+			} finally {
+				if (cursor != null)
+					cursor.close();
+			}
+			if (!closed)
+				try {
+					Thread.sleep(RETRY_DELAY);
+				} catch (InterruptedException e) {
+					break;
+				}
+		}
+	}
+
+	/**
+	 * Stop reading updates
+	 */
+	public void close() {
+		closed = true;
+		thread.interrupt();
+		DBCursor current = cursor;
+		if (current != null)
+			current.close();
+	}
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright (c) 2011 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.gitective.mongo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.eclipse.jgit.storage.dht.AsyncCallback;
+import org.eclipse.jgit.storage.dht.DhtException;
+import org.eclipse.jgit.storage.dht.spi.Context;
+
+/**
+ * Deduplication of lookups of keys that are already being looked up
+ * <p>
+ * Each key is looked up at most once at a time per context. Lookups of keys
+ * already in flight wait for the value of the lookup in flight instead of
+ * looking the key up again, and the callback of a lookup is called once the
+ * values of all its keys are known.
+ * 
+ * @param <K>
+ *            key type
+ * @param <V>
+ *            value type of a single key
+ * @param <T>
+ *            result type
+ */
+abstract class SingleFlight<K, V, T> {
+
+	/**
+	 * Lookup waiting for the values of its keys
+	 */
+	private class Waiter {
+
+		final AsyncCallback<T> callback;
+
+		final T result;
+
+		int remaining;
+
+		boolean failed;
+
+		Waiter(int remaining, AsyncCallback<T> callback) {
+			this.remaining = remaining;
+			this.callback = callback;
+			result = createResult();
+		}
+
+		void complete(K key, V value) {
+			synchronized (this) {
+				if (failed)
+					return;
+				if (value != null)
+					addValue(result, key, value);
+				if (--remaining > 0)
+					return;
+			}
+			callback.onSuccess(result);
+		}
+
+		void fail(DhtException error) {
+			synchronized (this) {
+				if (failed)
+					return;
+				failed = true;
+			}
+			callback.onFailure(error);
+		}
+	}
+
+	/**
+	 * Lookup of a single key in flight
+	 */
+	private class Flight {
+
+		final K key;
+
+		final List<Waiter> waiters = new ArrayList<Waiter>(2);
+
+		boolean done;
+
+		Flight(K key) {
+			this.key = key;
+		}
+
+		synchronized boolean add(Waiter waiter) {
+			if (done)
+				return false;
+			waiters.add(waiter);
+			return true;
+		}
+
+		private synchronized List<Waiter> finish() {
+			if (done)
+				return Collections.emptyList();
+			done = true;
+			return waiters;
+		}
+
+		void complete(V value) {
+			for (Waiter waiter : finish())
+				waiter.complete(key, value);
+		}
+
+		void fail(DhtException error) {
+			for (Waiter waiter : finish())
+				waiter.fail(error);
+		}
+	}
+
+	private final Map<Context, ConcurrentMap<K, Flight>> flights = new EnumMap<Context, ConcurrentMap<K, Flight>>(
+			Context.class);
+
+	private final ConcurrentMap<K, Flight> defaultFlights = new ConcurrentHashMap<K, Flight>();
+
+	SingleFlight() {
+		for (Context context : Context.values())
+			flights.put(context, new ConcurrentHashMap<K, Flight>());
+	}
+
+	/**
+	 * Create empty result
+	 * 
+	 * @return result
+	 */
+	protected abstract T createResult();
+
+	/**
+	 * Add value of key to result
+	 * 
+	 * @param result
+	 * @param key
+	 * @param value
+	 */
+	protected abstract void addValue(T result, K key, V value);
+
+	/**
+	 * Get values of each key in result
+	 * 
+	 * @param result
+	 * @return map of key to value
+	 */
+	protected abstract Map<K, V> getValues(T result);
+
+	/**
+	 * Look up keys using the underlying table
+	 * 
+	 * @param options
+	 * @param keys
+	 * @param callback
+	 */
+	protected abstract void lookup(Context options, Set<K> keys,
+			AsyncCallback<T> callback);
+
+	/**
+	 * Look up keys not already in flight and wait for the rest
+	 * 
+	 * @param options
+	 * @param keys
+	 * @param callback
+	 */
+	void get(Context options, Set<K> keys, AsyncCallback<T> callback) {
+		if (keys.isEmpty()) {
+			callback.onSuccess(createResult());
+			return;
+		}
+
+		final ConcurrentMap<K, Flight> inFlight = options != null ? flights
+				.get(options) : defaultFlights;
+		Waiter waiter = new Waiter(keys.size(), callback);
+		final List<Flight> leading = new ArrayList<Flight>();
+		Set<K> lookup = new HashSet<K>();
+		for (K key : keys)
+			for (;;) {
+				Flight flight = new Flight(key);
+				Flight existing = inFlight.putIfAbsent(key, flight);
+				if (existing == null) {
+					flight.add(waiter);
+					leading.add(flight);
+					lookup.add(key);
+					break;
+				}
+				if (existing.add(waiter))
+					break;
+				inFlight.remove(key, existing);
+			}
+		if (leading.isEmpty())
+			return;
+
+		AsyncCallback<T> leader = new AsyncCallback<T>() {
+
+			public void onSuccess(T result) {
+				Map<K, V> values = getValues(result);
+				for (Flight flight : leading) {
+					inFlight.remove(flight.key, flight);
+					flight.complete(values.get(flight.key));
+				}
+			}
+
+			public void onFailure(DhtException error) {
+				for (Flight flight : leading) {
+					inFlight.remove(flight.key, flight);
+					flight.fail(error);
+				}
+			}
+		};
+		try {
+			lookup(options, lookup, leader);
+		} catch (RuntimeException e) {
+			// Flights must not be left in flight or later lookups never
+			// complete
+			leader.onFailure(new DhtException(e));
+		}
+	}
+}
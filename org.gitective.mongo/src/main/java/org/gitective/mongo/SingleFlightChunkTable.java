@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2011 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.gitective.mongo;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.jgit.generated.storage.dht.proto.GitStore.ChunkMeta;
+import org.eclipse.jgit.storage.dht.AsyncCallback;
+import org.eclipse.jgit.storage.dht.ChunkKey;
+import org.eclipse.jgit.storage.dht.DhtException;
+import org.eclipse.jgit.storage.dht.PackChunk.Members;
+import org.eclipse.jgit.storage.dht.spi.ChunkTable;
+import org.eclipse.jgit.storage.dht.spi.Context;
+import org.eclipse.jgit.storage.dht.spi.WriteBuffer;
+
+/**
+ * Chunk table that shares lookups of chunks already being looked up from a
+ * delegate chunk table
+ * <p>
+ * Concurrent lookups of the same chunk result in a single lookup of the
+ * delegate with every waiting callback passed the same chunk. Writes are
+ * passed to the delegate on the calling thread.
+ */
+public class SingleFlightChunkTable implements ChunkTable {
+
+	private final ChunkTable delegate;
+
+	private final SingleFlight<ChunkKey, Members, Collection<Members>> chunks;
+
+	private final SingleFlight<ChunkKey, ChunkMeta, Map<ChunkKey, ChunkMeta>> meta;
+
+	/**
+	 * @param delegate
+	 */
+	public SingleFlightChunkTable(final ChunkTable delegate) {
+		this.delegate = delegate;
+		chunks = new SingleFlight<ChunkKey, Members, Collection<Members>>() {
+
+			protected Collection<Members> createResult() {
+				return new ArrayList<Members>();
+			}
+
+			protected void addValue(Collection<Members> result, ChunkKey key,
+					Members value) {
+				result.add(value);
+			}
+
+			protected Map<ChunkKey, Members> getValues(
+					Collection<Members> result) {
+				Map<ChunkKey, Members> values = new HashMap<ChunkKey, Members>();
+				for (Members members : result)
+					values.put(members.getChunkKey(), members);
+				return values;
+			}
+
+			protected void lookup(Context options, Set<ChunkKey> keys,
+					AsyncCallback<Collection<Members>> callback) {
+				delegate.get(options, keys, callback);
+			}
+		};
+		meta = new SingleFlight<ChunkKey, ChunkMeta, Map<ChunkKey, ChunkMeta>>() {
+
+			protected Map<ChunkKey, ChunkMeta> createResult() {
+				return new HashMap<ChunkKey, ChunkMeta>();
+			}
+
+			protected void addValue(Map<ChunkKey, ChunkMeta> result,
+					ChunkKey key, ChunkMeta value) {
+				result.put(key, value);
+			}
+
+			protected Map<ChunkKey, ChunkMeta> getValues(
+					Map<ChunkKey, ChunkMeta> result) {
+				return result;
+			}
+
+			protected void lookup(Context options, Set<ChunkKey> keys,
+					AsyncCallback<Map<ChunkKey, ChunkMeta>> callback) {
+				delegate.getMeta(options, keys, callback);
+			}
+		};
+	}
+
+	public void get(Context options, Set<ChunkKey> keys,
+			AsyncCallback<Collection<Members>> callback) {
+		chunks.get(options, keys, callback);
+	}
+
+	public void getMeta(Context options, Set<ChunkKey> keys,
+			AsyncCallback<Map<ChunkKey, ChunkMeta>> callback) {
+		meta.get(options, keys, callback);
+	}
+
+	public void put(Members chunk, WriteBuffer buffer) throws DhtException {
+		delegate.put(chunk, buffer);
+	}
+
+	public void remove(ChunkKey key, WriteBuffer buffer) throws DhtException {
+		delegate.remove(key, buffer);
+	}
+}
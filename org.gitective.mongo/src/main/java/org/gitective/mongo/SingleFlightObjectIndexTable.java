@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2011 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.gitective.mongo;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.jgit.storage.dht.AsyncCallback;
+import org.eclipse.jgit.storage.dht.ChunkKey;
+import org.eclipse.jgit.storage.dht.DhtException;
+import org.eclipse.jgit.storage.dht.ObjectIndexKey;
+import org.eclipse.jgit.storage.dht.ObjectInfo;
+import org.eclipse.jgit.storage.dht.spi.Context;
+import org.eclipse.jgit.storage.dht.spi.ObjectIndexTable;
+import org.eclipse.jgit.storage.dht.spi.WriteBuffer;
+
+/**
+ * Object index table that shares lookups of objects already being looked up
+ * from a delegate object index table
+ * <p>
+ * Concurrent lookups of the same object result in a single lookup of the
+ * delegate with every waiting callback passed the same locations. Writes are
+ * passed to the delegate on the calling thread.
+ */
+public class SingleFlightObjectIndexTable implements ObjectIndexTable {
+
+	private final ObjectIndexTable delegate;
+
+	private final SingleFlight<ObjectIndexKey, Collection<ObjectInfo>, Map<ObjectIndexKey, Collection<ObjectInfo>>> objects;
+
+	/**
+	 * @param delegate
+	 */
+	public SingleFlightObjectIndexTable(final ObjectIndexTable delegate) {
+		this.delegate = delegate;
+		objects = new SingleFlight<ObjectIndexKey, Collection<ObjectInfo>, Map<ObjectIndexKey, Collection<ObjectInfo>>>() {
+
+			protected Map<ObjectIndexKey, Collection<ObjectInfo>> createResult() {
+				return new HashMap<ObjectIndexKey, Collection<ObjectInfo>>();
+			}
+
+			protected void addValue(
+					Map<ObjectIndexKey, Collection<ObjectInfo>> result,
+					ObjectIndexKey key, Collection<ObjectInfo> value) {
+				result.put(key, value);
+			}
+
+			protected Map<ObjectIndexKey, Collection<ObjectInfo>> getValues(
+					Map<ObjectIndexKey, Collection<ObjectInfo>> result) {
+				return result;
+			}
+
+			protected void lookup(
+					Context options,
+					Set<ObjectIndexKey> keys,
+					AsyncCallback<Map<ObjectIndexKey, Collection<ObjectInfo>>> callback) {
+				delegate.get(options, keys, callback);
+			}
+		};
+	}
+
+	public void get(Context options, Set<ObjectIndexKey> keys,
+			AsyncCallback<Map<ObjectIndexKey, Collection<ObjectInfo>>> callback) {
+		objects.get(options, keys, callback);
+	}
+
+	public void add(ObjectIndexKey objId, ObjectInfo info, WriteBuffer buffer)
+			throws DhtException {
+		delegate.add(objId, info, buffer);
+	}
+
+	public void remove(ObjectIndexKey objId, ChunkKey chunk, WriteBuffer buffer)
+			throws DhtException {
+		delegate.remove(objId, chunk, buffer);
+	}
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2011 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.gitective.mongo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.Mongo;
+import com.mongodb.ReadPreference;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jgit.storage.dht.DhtException;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests of {@link AsyncMongoClient} run against a mongod on localhost
+ * <p>
+ * Tests are skipped when no server is running.
+ */
+public class AsyncMongoClientTest {
+
+	private static final String HOST = "localhost";
+
+	private static class Handler implements AsyncMongoClient.QueryHandler {
+
+		final List<DBObject> documents = new ArrayList<DBObject>();
+
+		final CountDownLatch done = new CountDownLatch(1);
+
+		int replies;
+
+		boolean complete;
+
+		DhtException error;
+
+		public synchronized void onDocuments(List<DBObject> batch) {
+			replies++;
+			documents.addAll(batch);
+		}
+
+		public synchronized void onComplete() {
+			complete = true;
+			done.countDown();
+		}
+
+		public synchronized void onFailure(DhtException e) {
+			error = e;
+			done.countDown();
+		}
+
+		void await() throws InterruptedException {
+			assertTrue(done.await(30, TimeUnit.SECONDS));
+		}
+	}
+
+	private Mongo mongo;
+
+	private DBCollection collection;
+
+	private AsyncMongoClient client;
+
+	/**
+	 * Connect to server and create test collection
+	 * 
+	 * @throws Exception
+	 */
+	@Before
+	public void setUp() throws Exception {
+		mongo = new Mongo(HOST);
+		DB db = mongo.getDB("gitective-test");
+		boolean running;
+		try {
+			running = db.command("ping").ok();
+		} catch (Exception e) {
+			running = false;
+		}
+		if (!running)
+			mongo.close();
+		Assume.assumeTrue(running);
+		collection = db.getCollection("asyncMongoClient");
+		collection.drop();
+		for (int i = 0; i < 25; i++)
+			collection.insert(new BasicDBObject(IPropertyConstants.ID, i)
+					.append("value", "document" + i));
+		client = new AsyncMongoClient(HOST, 2);
+	}
+
+	/**
+	 * Drop test collection and close connections
+	 * 
+	 * @throws Exception
+	 */
+	@After
+	public void tearDown() throws Exception {
+		if (client != null)
+			client.close();
+		if (collection != null)
+			collection.drop();
+		if (mongo != null)
+			mongo.close();
+	}
+
+	/**
+	 * Query returning more documents than the batch size is read to
+	 * completion with get more requests
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void queryReadsAllBatches() throws Exception {
+		Handler handler = new Handler();
+		client.query(collection.getFullName(), new BasicDBObject(), null, 4,
+				null, handler);
+		handler.await();
+		assertNull(handler.error);
+		assertTrue(handler.complete);
+		assertTrue(handler.replies > 1);
+		assertEquals(25, handler.documents.size());
+		Set<Object> ids = new HashSet<Object>();
+		for (DBObject document : handler.documents) {
+			ids.add(document.get(IPropertyConstants.ID));
+			assertEquals("document" + document.get(IPropertyConstants.ID),
+					document.get("value"));
+		}
+		assertEquals(25, ids.size());
+	}
+
+	/**
+	 * Query with field selector and slave ok flag only returns selected
+	 * fields
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void queryWithFields() throws Exception {
+		Handler handler = new Handler();
+		DBObject query = MongoUtils.in(IPropertyConstants.ID,
+				Arrays.asList(1, 2, 3));
+		DBObject fields = new BasicDBObject(IPropertyConstants.ID, 1);
+		client.query(collection.getFullName(), query, fields, 0,
+				ReadPreference.SECONDARY, null, handler);
+		handler.await();
+		assertNull(handler.error);
+		assertEquals(3, handler.documents.size());
+		for (DBObject document : handler.documents)
+			assertNull(document.get("value"));
+	}
+
+	/**
+	 * Query failure reply is passed to the handler
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void queryFailure() throws Exception {
+		Handler handler = new Handler();
+		client.query(collection.getFullName(), new BasicDBObject(
+				IPropertyConstants.ID, new BasicDBObject("$invalid", 1)),
+				null, 0, null, handler);
+		handler.await();
+		assertNotNull(handler.error);
+		assertFalse(handler.complete);
+	}
+
+	/**
+	 * Queries sent after closing fail
+	 * 
+	 * @throws Exception
+	 */
+	@Test(expected = DhtException.class)
+	public void queryAfterClose() throws Exception {
+		client.close();
+		client.query(collection.getFullName(), new BasicDBObject(), null, 0,
+				null, new Handler());
+	}
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2011 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.gitective.mongo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.mongodb.DBObject;
+
+import org.junit.Test;
+
+/**
+ * Unit tests of {@link KeyCodec}
+ */
+public class KeyCodecTest {
+
+	private static final String OBJECT = "0123456789abcdef0123456789abcdef01234567";
+
+	/**
+	 * Create key string
+	 * 
+	 * @param repository
+	 * @param object
+	 * @return key
+	 */
+	static String createKey(int repository, String object) {
+		return String.format("%08x.", repository) + object;
+	}
+
+	/**
+	 * Compare binary ids the way MongoDB compares binary data of equal length
+	 * 
+	 * @param id1
+	 * @param id2
+	 * @return comparison result
+	 */
+	static int compare(Object id1, Object id2) {
+		byte[] key1 = (byte[]) id1;
+		byte[] key2 = (byte[]) id2;
+		if (key1.length != key2.length)
+			return key1.length - key2.length;
+		for (int i = 0; i < key1.length; i++)
+			if (key1[i] != key2[i])
+				return (key1[i] & 0xff) - (key2[i] & 0xff);
+		return 0;
+	}
+
+	private static boolean inRange(Object id, DBObject range) {
+		return compare(range.get("$gte"), id) <= 0
+				&& compare(id, range.get("$lte")) <= 0;
+	}
+
+	/**
+	 * Sharded keys decode to the encoded key string
+	 */
+	@Test
+	public void shardedRoundTrip() {
+		int[] repositories = new int[] { 0, 1, 2, 0x7fffffff, 0x80000000,
+				0xffffffff };
+		for (int repository : repositories) {
+			String key = createKey(repository, OBJECT);
+			Object id = KeyCodec.SHARDED.encode(key);
+			assertTrue(id instanceof byte[]);
+			byte[] bytes = (byte[]) id;
+			assertEquals(KeyCodec.SHARDED_LENGTH, bytes.length);
+			int bucket = (bytes[0] & 0xff) << 8 | (bytes[1] & 0xff);
+			assertEquals(KeyCodec.getBucket(repository), bucket);
+			assertEquals(key, KeyCodec.decode(id));
+		}
+	}
+
+	/**
+	 * Keys that are not of the expected form are stored as strings
+	 */
+	@Test
+	public void shardedInvalidKey() {
+		assertEquals("refs/heads/master",
+				KeyCodec.SHARDED.encode("refs/heads/master"));
+		String key = createKey(1, OBJECT).toUpperCase();
+		assertEquals(key, KeyCodec.SHARDED.encode(key));
+	}
+
+	/**
+	 * Sequential repositories are spread across buckets
+	 */
+	@Test
+	public void sequentialRepositoriesSpread() {
+		int previous = KeyCodec.getBucket(1);
+		for (int repository = 2; repository < 100; repository++) {
+			int bucket = KeyCodec.getBucket(repository);
+			assertTrue(bucket >= 0 && bucket < MongoSharding.MAX_SPLITS);
+			assertTrue(bucket != previous);
+			previous = bucket;
+		}
+	}
+
+	/**
+	 * The range of a repository contains all its keys and no keys of other
+	 * repositories
+	 */
+	@Test
+	public void shardedRangeContiguous() {
+		int repository = 0x1234;
+		DBObject range = KeyCodec.SHARDED.createRange(String.format("%08x.",
+				repository));
+		assertEquals(KeyCodec.SHARDED_LENGTH,
+				((byte[]) range.get("$gte")).length);
+		assertEquals(KeyCodec.SHARDED_LENGTH,
+				((byte[]) range.get("$lte")).length);
+		String[] objects = new String[] {
+				"0000000000000000000000000000000000000000", OBJECT,
+				"ffffffffffffffffffffffffffffffffffffffff" };
+		for (String object : objects) {
+			assertTrue(inRange(
+					KeyCodec.SHARDED.encode(createKey(repository, object)),
+					range));
+			for (int other = repository - 2; other <= repository + 2; other++)
+				if (other != repository)
+					assertFalse(inRange(KeyCodec.SHARDED.encode(createKey(
+							other, object)), range));
+		}
+	}
+
+	/**
+	 * Split points are ordered and each key sorts between the split point of
+	 * its bucket and the next one
+	 */
+	@Test
+	public void splitPointsOrdered() {
+		Object previous = null;
+		for (int prefix = 0; prefix < MongoSharding.MAX_SPLITS; prefix += 257) {
+			Object split = KeyCodec.SHARDED.createSplitPoint(prefix);
+			assertEquals(KeyCodec.SHARDED_LENGTH, ((byte[]) split).length);
+			if (previous != null)
+				assertTrue(compare(previous, split) < 0);
+			previous = split;
+		}
+		for (int repository = 0; repository < 1000; repository++) {
+			Object id = KeyCodec.SHARDED.encode(createKey(repository, OBJECT));
+			int bucket = KeyCodec.getBucket(repository);
+			assertTrue(compare(KeyCodec.SHARDED.createSplitPoint(bucket), id) <= 0);
+			if (bucket + 1 < MongoSharding.MAX_SPLITS)
+				assertTrue(compare(id,
+						KeyCodec.SHARDED.createSplitPoint(bucket + 1)) < 0);
+		}
+	}
+}
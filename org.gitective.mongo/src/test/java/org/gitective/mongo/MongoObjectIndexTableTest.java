@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2011 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.gitective.mongo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.Mongo;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+
+import org.eclipse.jgit.generated.storage.dht.proto.GitStore;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.storage.dht.AsyncCallback;
+import org.eclipse.jgit.storage.dht.ChunkKey;
+import org.eclipse.jgit.storage.dht.DhtException;
+import org.eclipse.jgit.storage.dht.ObjectIndexKey;
+import org.eclipse.jgit.storage.dht.ObjectInfo;
+import org.eclipse.jgit.storage.dht.RepositoryKey;
+import org.eclipse.jgit.storage.dht.spi.Context;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests of {@link MongoObjectIndexTable} run against a mongod on
+ * localhost
+ * <p>
+ * Tests are skipped when no server is running.
+ */
+public class MongoObjectIndexTableTest {
+
+	private static final RepositoryKey REPO = RepositoryKey.create(1);
+
+	private static final ObjectIndexKey OBJECT = ObjectIndexKey.create(REPO,
+			ObjectId.fromString("0123456789012345678901234567890123456789"));
+
+	private static final ChunkKey CHUNK = ChunkKey.create(REPO,
+			ObjectId.fromString("abcdefabcdefabcdefabcdefabcdefabcdefabcd"));
+
+	private Mongo mongo;
+
+	private DBCollection collection;
+
+	private MongoObjectIndexTable table;
+
+	/**
+	 * Connect to server and create object index table using the array layout
+	 * 
+	 * @throws Exception
+	 */
+	@Before
+	public void setUp() throws Exception {
+		mongo = new Mongo("localhost");
+		DB db = mongo.getDB("gitective-test");
+		boolean running;
+		try {
+			running = db.command("ping").ok();
+		} catch (Exception e) {
+			running = false;
+		}
+		if (!running)
+			mongo.close();
+		Assume.assumeTrue(running);
+		collection = db.getCollection("objectIndex");
+		collection.drop();
+		table = new MongoObjectIndexTable(collection);
+		table.setValueArray(true);
+	}
+
+	/**
+	 * Drop test collection and close connections
+	 * 
+	 * @throws Exception
+	 */
+	@After
+	public void tearDown() throws Exception {
+		if (collection != null)
+			collection.drop();
+		if (mongo != null)
+			mongo.close();
+	}
+
+	private static ObjectInfo createInfo(int offset) {
+		return new ObjectInfo(CHUNK, 0, GitStore.ObjectInfo.newBuilder()
+				.setOffset(offset).setPackedSize(10).setInflatedSize(20)
+				.build());
+	}
+
+	private Collection<ObjectInfo> get() {
+		final Object[] found = new Object[1];
+		table.get(Context.READ_REPAIR, Collections.singleton(OBJECT),
+				new AsyncCallback<Map<ObjectIndexKey, Collection<ObjectInfo>>>() {
+
+					public void onSuccess(
+							Map<ObjectIndexKey, Collection<ObjectInfo>> result) {
+						found[0] = result;
+					}
+
+					public void onFailure(DhtException error) {
+						found[0] = error;
+					}
+				});
+		assertNotNull(found[0]);
+		@SuppressWarnings("unchecked")
+		Map<ObjectIndexKey, Collection<ObjectInfo>> result = (Map<ObjectIndexKey, Collection<ObjectInfo>>) found[0];
+		return result.get(OBJECT);
+	}
+
+	private void add(ObjectInfo info) throws DhtException {
+		MongoWriteBuffer buffer = new MongoWriteBuffer();
+		table.add(OBJECT, info, buffer);
+		buffer.flush();
+	}
+
+	private void assertOffset(int offset) {
+		Collection<ObjectInfo> infos = get();
+		assertNotNull(infos);
+		assertEquals(1, infos.size());
+		assertEquals(offset, infos.iterator().next().getData().getOffset());
+	}
+
+	/**
+	 * Adding info of a chunk that was replaced by other info returns the last
+	 * info added
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void readdInfo() throws Exception {
+		add(createInfo(1));
+		add(createInfo(2));
+		add(createInfo(1));
+		assertOffset(1);
+		assertEquals(1, ((Collection<?>) collection.findOne().get(
+				IPropertyConstants.VALUES)).size());
+	}
+
+	/**
+	 * Re-adding info within a single write buffer returns the last info added
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void readdInfoInBuffer() throws Exception {
+		MongoWriteBuffer buffer = new MongoWriteBuffer();
+		table.add(OBJECT, createInfo(1), buffer);
+		table.add(OBJECT, createInfo(2), buffer);
+		table.add(OBJECT, createInfo(1), buffer);
+		buffer.flush();
+		assertOffset(1);
+	}
+
+	/**
+	 * Removing the info of a chunk leaves no info of the object
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void removeInfo() throws Exception {
+		add(createInfo(1));
+		MongoWriteBuffer buffer = new MongoWriteBuffer();
+		table.remove(OBJECT, CHUNK, buffer);
+		buffer.flush();
+		Collection<ObjectInfo> infos = get();
+		assertTrue(infos == null || infos.isEmpty());
+	}
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2011 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.gitective.mongo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.Mongo;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests of {@link MongoSharding} and {@link KeyCodec#SHARDED} ids run
+ * against a mongod on localhost
+ * <p>
+ * Tests are skipped when no server is running.
+ */
+public class MongoShardingTest {
+
+	private static final String OBJECT = "0123456789abcdef0123456789abcdef01234567";
+
+	private Mongo mongo;
+
+	private DB db;
+
+	private DBCollection collection;
+
+	/**
+	 * Connect to server and create test collection
+	 * 
+	 * @throws Exception
+	 */
+	@Before
+	public void setUp() throws Exception {
+		mongo = new Mongo("localhost");
+		db = mongo.getDB("gitective-test");
+		boolean running;
+		try {
+			running = db.command("ping").ok();
+		} catch (Exception e) {
+			running = false;
+		}
+		if (!running)
+			mongo.close();
+		Assume.assumeTrue(running);
+		collection = db.getCollection("sharding");
+		collection.drop();
+		for (int repository = 0; repository < 200; repository++)
+			for (int i = 0; i < 3; i++)
+				collection.insert(new IdObject(KeyCodec.SHARDED
+						.encode(KeyCodecTest.createKey(repository,
+								i + OBJECT.substring(1)))));
+	}
+
+	/**
+	 * Drop test collection and close connections
+	 * 
+	 * @throws Exception
+	 */
+	@After
+	public void tearDown() throws Exception {
+		if (collection != null)
+			collection.drop();
+		if (mongo != null)
+			mongo.close();
+	}
+
+	/**
+	 * Sharding does nothing when connected to a mongod
+	 */
+	@Test
+	public void shardOnMongod() {
+		Assume.assumeTrue(!MongoSharding.isMongos(db));
+		assertEquals(0, MongoSharding.shard(db, KeyCodec.SHARDED,
+				MongoSharding.DEFAULT_SPLITS));
+		assertFalse(MongoSharding.shardCollection(collection));
+		assertEquals(0, MongoSharding.preSplit(collection, KeyCodec.SHARDED,
+				MongoSharding.DEFAULT_SPLITS));
+		assertFalse(MongoSharding.isSharded(collection));
+		assertFalse(MongoSharding.isSharded(db
+				.getCollection(ICollectionConstants.CHUNKS)));
+	}
+
+	/**
+	 * Range query of a repository returns exactly the ids of its keys
+	 */
+	@Test
+	public void rangeQuery() {
+		for (int repository = 0; repository < 200; repository += 37) {
+			DBObject range = KeyCodec.SHARDED.createRange(String.format(
+					"%08x.", repository));
+			assertEquals(3, collection.count(new BasicDBObject(
+					IPropertyConstants.ID, range)));
+			for (DBObject document : collection.find(new BasicDBObject(
+					IPropertyConstants.ID, range)))
+				assertEquals(String.format("%08x.", repository), KeyCodec
+						.decode(document.get(IPropertyConstants.ID))
+						.substring(0, 9));
+		}
+	}
+
+	/**
+	 * Split points sort against stored ids by bucket
+	 */
+	@Test
+	public void splitPointQuery() {
+		int total = 0;
+		for (int split = 0; split < 4; split++) {
+			int lower = split * MongoSharding.MAX_SPLITS / 4;
+			int upper = (split + 1) * MongoSharding.MAX_SPLITS / 4;
+			BasicDBObject range = new BasicDBObject("$gte",
+					KeyCodec.SHARDED.createSplitPoint(lower));
+			if (upper < MongoSharding.MAX_SPLITS)
+				range.append("$lt", KeyCodec.SHARDED.createSplitPoint(upper));
+			int expected = 0;
+			for (int repository = 0; repository < 200; repository++) {
+				int bucket = KeyCodec.getBucket(repository);
+				if (bucket >= lower && bucket < upper)
+					expected += 3;
+			}
+			int count = (int) collection.count(new BasicDBObject(
+					IPropertyConstants.ID, range));
+			assertEquals(expected, count);
+			total += count;
+		}
+		assertEquals(600, total);
+	}
+}